@@ -0,0 +1,378 @@
+package cc.photos.uploader;
+
+import cc.photos.uploader.gateway.PhotosGateway;
+import cc.photos.uploader.model.AlbumEntry;
+import cc.photos.uploader.state.MediaItemCatalog;
+import cc.photos.uploader.state.WorkLedger;
+import cc.photos.uploader.tasks.AlbumAddTask;
+import cc.photos.uploader.util.ContentFingerprint;
+import cc.photos.uploader.util.ProgressLog;
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
+import com.google.photos.types.proto.MediaItem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads each distinct file once, and adds it to the other albums it is listed under as the existing
+ * media item.
+ *
+ * <p>Before entries are uploaded, {@link #planUploads} looks up their content in the
+ * {@link MediaItemCatalog}. Entries whose content was created before are linked to their album through
+ * `albums.batchAddMediaItems`; of the entries sharing the same content in the input, only the first is
+ * uploaded and the others wait for its media item. Files are only read in full to be fingerprinted when
+ * their size matches a file in the catalog, or their size and sampled ends match another file of the input,
+ * so a list of distinct files costs a {@code stat} per file and little more.
+ *
+ * <p>Links are batched per album, up to {@link AlbumAddTask#MAX_ITEMS_PER_CALL} media items per call.
+ * Calls failing with a transient error are retried. A call rejected because of a media item, e.g. one
+ * deleted from the library, is split until the offending media items are found; only their entries are
+ * returned by {@link #takeUnlinked()} to be uploaded after all.
+ *
+ * <p>When nodes share a {@link WorkLedger}, the entries waiting for a file another node owns stay parked
+ * until this node either uploads the file after all or learns that the other node did, in which case
+ * that node links them. Linked entries are recorded as done in the ledger, like created ones.
+ *
+ * <p>Like item creation, linking happens serially on the thread driving the run.
+ */
+public class AlbumLinkService {
+    private static final Logger LOG = LoggerFactory.getLogger(AlbumLinkService.class);
+
+    /** Number of times a link that failed with a transient error is attempted. */
+    private static final int MAX_ATTEMPTS = 3;
+
+    /** Delay before the first retry of a link, doubled before the second. */
+    private static final long RETRY_DELAY_MILLIS = 5000;
+
+    private final PhotosGateway gateway;
+    private final MediaItemCatalog catalog;
+    private final ProgressLog progressLog;
+    /** Ledger shared with other nodes, or null when running alone. */
+    private final WorkLedger workLedger;
+
+    /** Fingerprint of the entries being uploaded whose content may be shared with other entries. */
+    private final Map<AlbumEntry, String> uploading = new HashMap<>();
+
+    /** Entries waiting for the media item of an entry being uploaded, by fingerprint. */
+    private final Map<String, List<AlbumEntry>> waiting = new LinkedHashMap<>();
+
+    /** Links not made yet, by album id. */
+    private final Map<String, List<Link>> linkQueue = new LinkedHashMap<>();
+
+    /** Entries that could not be linked and have to be uploaded. */
+    private final List<AlbumEntry> unlinked = new ArrayList<>();
+
+    private int linkedCount;
+    private int failedLinkCount;
+
+    /**
+     * @param gateway API to call.
+     * @param catalog Media items created by this and earlier runs.
+     * @param progressLog Progress of the run, counts the linked entries.
+     * @param workLedger Ledger shared with other nodes uploading the same list, may be null when
+     *                   running alone.
+     */
+    public AlbumLinkService(PhotosGateway gateway, MediaItemCatalog catalog, ProgressLog progressLog,
+                            WorkLedger workLedger) {
+        this.gateway = gateway;
+        this.catalog = catalog;
+        this.progressLog = progressLog;
+        this.workLedger = workLedger;
+    }
+
+    /**
+     * Decides which entries have to be uploaded. The others are queued to be linked to their album, now
+     * or once the media item for their content is created.
+     *
+     * @param entries Entries to add to their album.
+     * @return Entries to upload.
+     */
+    public synchronized List<AlbumEntry> planUploads(List<AlbumEntry> entries) {
+        long[] sizes = new long[entries.size()];
+        Map<Long, Integer> entriesBySize = new HashMap<>();
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = entries.get(i).mediaPath().length();
+            entriesBySize.merge(sizes[i], 1, Integer::sum);
+        }
+        // Of the files sharing their size, only those whose ends match too may share their content.
+        String[] samples = new String[sizes.length];
+        Map<String, Integer> entriesBySample = new HashMap<>();
+        for (int i = 0; i < sizes.length; i++) {
+            if (entriesBySize.get(sizes[i]) > 1 && !uploading.containsKey(entries.get(i))) {
+                try {
+                    samples[i] = ContentFingerprint.sample(entries.get(i).mediaPath(), sizes[i]);
+                    entriesBySample.merge(samples[i], 1, Integer::sum);
+                } catch (IOException e) {
+                    // Let the upload report the error.
+                }
+            }
+        }
+
+        List<AlbumEntry> toUpload = new ArrayList<>(entries.size());
+        for (int i = 0; i < sizes.length; i++) {
+            AlbumEntry entry = entries.get(i);
+            if (uploading.containsKey(entry)) {
+                // Planned by an earlier round but held by another node then, its waiters are still parked.
+                toUpload.add(entry);
+                continue;
+            }
+            boolean sharedSample = samples[i] != null && entriesBySample.get(samples[i]) > 1;
+            if (!sharedSample && !catalog.hasSize(sizes[i])) {
+                // No other file has this content.
+                toUpload.add(entry);
+                continue;
+            }
+            String fingerprint;
+            try {
+                fingerprint = ContentFingerprint.of(entry.mediaPath(), sizes[i]);
+            } catch (IOException e) {
+                // Let the upload report the error.
+                toUpload.add(entry);
+                continue;
+            }
+            Optional<String> mediaItemId = catalog.find(fingerprint);
+            if (mediaItemId.isPresent()) {
+                queueLink(new Link(entry, fingerprint, mediaItemId.get()));
+            } else if (waiting.containsKey(fingerprint)) {
+                waiting.get(fingerprint).add(entry);
+            } else {
+                uploading.put(entry, fingerprint);
+                waiting.put(fingerprint, new ArrayList<>());
+                toUpload.add(entry);
+            }
+        }
+        if (toUpload.size() < entries.size()) {
+            LOG.info("{} of {} entries are already uploaded or listed more than once, they will be added to "
+                    + "their album without uploading them again.", entries.size() - toUpload.size(), entries.size());
+        }
+        return toUpload;
+    }
+
+    /**
+     * Records a media item created for an uploaded entry, and queues the entries waiting for it.
+     *
+     * @param entry Entry that was uploaded.
+     * @param mediaItem Media item created for it.
+     */
+    public synchronized void created(AlbumEntry entry, MediaItem mediaItem) {
+        String fingerprint = uploading.remove(entry);
+        if (fingerprint == null) {
+            return;
+        }
+        catalog.record(fingerprint, mediaItem.getId());
+        for (AlbumEntry waitingEntry : waiting.remove(fingerprint)) {
+            if (waitingEntry.album().getId().equals(entry.album().getId())) {
+                // Listed twice under the same album, it is already there.
+                linked(List.of(waitingEntry));
+            } else {
+                queueLink(new Link(waitingEntry, fingerprint, mediaItem.getId()));
+            }
+        }
+    }
+
+    /**
+     * Records that no media item was created for an entry because its upload or creation failed. The
+     * entries waiting for it now have to be uploaded themselves, each claimed in the ledger like any
+     * other upload.
+     *
+     * @param entry Entry that was not created.
+     */
+    public synchronized void notCreated(AlbumEntry entry) {
+        String fingerprint = uploading.remove(entry);
+        if (fingerprint != null) {
+            unlinked.addAll(waiting.remove(fingerprint));
+        }
+    }
+
+    /**
+     * Records that another node already created an entry. That node links the entries waiting for the
+     * same content, so they are dropped here rather than uploaded a second time.
+     *
+     * @param entry Entry the ledger reports as done.
+     */
+    public synchronized void doneElsewhere(AlbumEntry entry) {
+        String fingerprint = uploading.remove(entry);
+        if (fingerprint != null) {
+            List<AlbumEntry> dropped = waiting.remove(fingerprint);
+            ProgressLog.EVENTS.debug("done elsewhere {}, {} entries with the same content left to its node",
+                    entry.mediaPath(), dropped.size());
+        }
+    }
+
+    /**
+     * Queues an entry to be added to its album as a media item already in the library, e.g. found by
+     * {@link ReconciliationService}. If the media item is gone, the entry is uploaded after all.
+     *
+     * @param entry Entry to add to its album.
+     * @param mediaItemId Media item to add.
+     */
+    public synchronized void link(AlbumEntry entry, String mediaItemId) {
+        queueLink(new Link(entry, null, mediaItemId));
+    }
+
+    /**
+     * Makes all queued links.
+     */
+    public synchronized void flush() {
+        for (Map.Entry<String, List<Link>> links : linkQueue.entrySet()) {
+            addToAlbum(links.getKey(), links.getValue());
+        }
+        linkQueue.clear();
+    }
+
+    /**
+     * Returns, and forgets, the entries that could not be linked and have to be uploaded.
+     */
+    public synchronized List<AlbumEntry> takeUnlinked() {
+        List<AlbumEntry> entries = new ArrayList<>(unlinked);
+        unlinked.clear();
+        return entries;
+    }
+
+    /**
+     * Returns, and forgets, every entry not added to its album yet: those that could not be linked, those
+     * whose links are queued, and those waiting for a media item. Used to save the work left over by a
+     * drained run.
+     */
+    public synchronized List<AlbumEntry> takeUnfinished() {
+        List<AlbumEntry> entries = takeUnlinked();
+        linkQueue.values().forEach(links -> links.forEach(link -> entries.add(link.entry())));
+        waiting.values().forEach(entries::addAll);
+        linkQueue.clear();
+        waiting.clear();
+        uploading.clear();
+        return entries;
+    }
+
+    public synchronized int getLinkedCount() {
+        return linkedCount;
+    }
+
+    /** Number of entries that could not be linked because of an error other than a stale media item. */
+    public synchronized int getFailedLinkCount() {
+        return failedLinkCount;
+    }
+
+    private void queueLink(Link link) {
+        String albumId = link.entry().album().getId();
+        List<Link> links = linkQueue.computeIfAbsent(albumId, id -> new ArrayList<>());
+        links.add(link);
+        if (links.size() >= AlbumAddTask.MAX_ITEMS_PER_CALL) {
+            linkQueue.remove(albumId);
+            addToAlbum(albumId, links);
+        }
+    }
+
+    private void addToAlbum(String albumId, List<Link> links) {
+        // The same content may be listed twice under the album.
+        LinkedHashSet<String> mediaItemIds = new LinkedHashSet<>();
+        links.forEach(link -> mediaItemIds.add(link.mediaItemId()));
+
+        AlbumAddTask.AlbumAddResult result = addWithRetries(albumId, new ArrayList<>(mediaItemIds));
+        if (result.isOk()) {
+            List<AlbumEntry> entries = new ArrayList<>(links.size());
+            links.forEach(link -> entries.add(link.entry()));
+            linked(entries);
+            return;
+        }
+        //noinspection OptionalGetWithoutIsPresent
+        if (!isStale(result.error.get())) {
+            // The media items are still in the library and in the catalog, the next run links these entries
+            // again without uploading them.
+            LOG.error("Unable to add {} existing items to album {}, they are left for the next run.",
+                    mediaItemIds.size(), albumId);
+            failedLinkCount += links.size();
+            return;
+        }
+        if (mediaItemIds.size() > 1) {
+            // One stale media item fails the whole call, split the batch to find it.
+            List<String> ids = new ArrayList<>(mediaItemIds);
+            Set<String> firstHalf = new HashSet<>(ids.subList(0, ids.size() / 2));
+            List<Link> first = new ArrayList<>();
+            List<Link> second = new ArrayList<>();
+            links.forEach(link -> (firstHalf.contains(link.mediaItemId()) ? first : second).add(link));
+            addToAlbum(albumId, first);
+            addToAlbum(albumId, second);
+            return;
+        }
+        // The media item was e.g. deleted from the library, upload its files again.
+        for (Link link : links) {
+            if (link.fingerprint() != null) {
+                catalog.forget(link.fingerprint());
+            }
+            unlinked.add(link.entry());
+        }
+    }
+
+    private AlbumAddTask.AlbumAddResult addWithRetries(String albumId, List<String> mediaItemIds) {
+        AlbumAddTask.AlbumAddResult result = new AlbumAddTask(gateway, albumId, mediaItemIds).call();
+        //noinspection OptionalGetWithoutIsPresent
+        for (int attempt = 1; attempt < MAX_ATTEMPTS && !result.isOk() && isTransient(result.error.get()); attempt++) {
+            long delayMillis = RETRY_DELAY_MILLIS * attempt;
+            LOG.warn("Retrying to add {} existing items to album {} in {}s.", mediaItemIds.size(), albumId,
+                    delayMillis / 1000);
+            try {
+                TimeUnit.MILLISECONDS.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            result = new AlbumAddTask(gateway, albumId, mediaItemIds).call();
+        }
+        return result;
+    }
+
+    /** Whether a failed call may succeed if made again, e.g. after a network error or over quota. */
+    private static boolean isTransient(Throwable error) {
+        if (!(error instanceof ApiException apiException)) {
+            return true;
+        }
+        return apiException.isRetryable() || switch (apiException.getStatusCode().getCode()) {
+            case RESOURCE_EXHAUSTED, UNAVAILABLE, DEADLINE_EXCEEDED, ABORTED, INTERNAL, UNKNOWN -> true;
+            default -> false;
+        };
+    }
+
+    /** Whether a call failed because of one of its media items, e.g. one deleted from the library. */
+    private static boolean isStale(Throwable error) {
+        return error instanceof ApiException apiException
+                && (apiException.getStatusCode().getCode() == StatusCode.Code.NOT_FOUND
+                || apiException.getStatusCode().getCode() == StatusCode.Code.INVALID_ARGUMENT);
+    }
+
+    private void linked(List<AlbumEntry> entries) {
+        for (AlbumEntry entry : entries) {
+            ProgressLog.EVENTS.debug("linked {} album={}", entry.mediaPath(), entry.album().getTitle());
+            if (workLedger != null) {
+                try {
+                    workLedger.complete(entry);
+                } catch (IOException e) {
+                    LOG.warn("Unable to record {} as done in the work ledger: {}", entry.mediaPath(), e.getMessage());
+                }
+            }
+        }
+        linkedCount += entries.size();
+        progressLog.linked(entries.size());
+    }
+
+    /**
+     * An entry to add to its album as an existing media item.
+     *
+     * @param entry Entry to add.
+     * @param fingerprint Fingerprint of its content, null if the media item was not found by content.
+     * @param mediaItemId Media item created for the same content.
+     */
+    private record Link(AlbumEntry entry, String fingerprint, String mediaItemId) {}
+}
@@ -1,11 +1,15 @@
 package cc.photos.uploader;
 
+import cc.photos.uploader.jfr.AlbumEvent;
+import cc.photos.uploader.state.WorkLedger;
 import com.google.photos.library.v1.PhotosLibraryClient;
 import com.google.photos.types.proto.Album;
 import com.google.common.base.Stopwatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -14,16 +18,37 @@ public class AlbumService {
     private static final Logger LOG = LoggerFactory.getLogger(AlbumService.class);
     public final Map<String, Album> ALBUM_CACHE = new HashMap<>();
     private final PhotosLibraryClient client;
+    private final WorkLedger workLedger;
 
     public AlbumService(PhotosLibraryClient client) {
+        this(client, null);
+    }
+
+    /**
+     * @param client API client.
+     * @param workLedger Ledger shared with other nodes, used so that only one node creates each
+     *                   missing album. May be null when running alone.
+     */
+    public AlbumService(PhotosLibraryClient client, WorkLedger workLedger) {
         this.client = client;
+        this.workLedger = workLedger;
     }
 
     public void initializeAlbumCache() {
         LOG.info("Initializing album cache");
         Stopwatch timer = Stopwatch.createStarted();
-        for (Album album : client.listAlbums().iterateAll()) {
-            ALBUM_CACHE.put(album.getTitle(), album);
+        AlbumEvent event = new AlbumEvent();
+        event.begin();
+        String outcome = "OK";
+        try {
+            for (Album album : client.listAlbums().iterateAll()) {
+                ALBUM_CACHE.put(album.getTitle(), album);
+            }
+        } catch (RuntimeException e) {
+            outcome = e.toString();
+            throw e;
+        } finally {
+            commitEvent(event, AlbumEvent.LIST, null, ALBUM_CACHE.size(), outcome);
         }
         LOG.info("Album cache initialized with {} entries in {}", ALBUM_CACHE.size(), timer.stop());
     }
@@ -32,10 +57,46 @@ public class AlbumService {
         Album album = ALBUM_CACHE.get(albumName);
         if (album == null) {
             LOG.info("No album found with name: {}, creating.", albumName);
-            album = client.createAlbum(albumName);
+            album = createAlbum(albumName);
             ALBUM_CACHE.put(albumName, album);
         }
         return album;
     }
 
+    private Album createAlbum(String albumName) {
+        AlbumEvent event = new AlbumEvent();
+        event.begin();
+        String outcome = "OK";
+        try {
+            return workLedger != null ? createSharedAlbum(albumName) : client.createAlbum(albumName);
+        } catch (RuntimeException e) {
+            outcome = e.toString();
+            throw e;
+        } finally {
+            commitEvent(event, AlbumEvent.CREATE, albumName, 1, outcome);
+        }
+    }
+
+    private Album createSharedAlbum(String albumName) {
+        try {
+            return workLedger.sharedAlbum(albumName, () -> client.createAlbum(albumName));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to coordinate creation of album: " + albumName, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for album: " + albumName, e);
+        }
+    }
+
+    private static void commitEvent(AlbumEvent event, String operation, String album, int items, String outcome) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.album = album;
+            event.items = items;
+            event.outcome = outcome;
+            event.commit();
+        }
+    }
+
 }
@@ -0,0 +1,385 @@
+package cc.photos.uploader;
+
+import cc.photos.uploader.gateway.PhotosGateway;
+import cc.photos.uploader.model.AlbumEntry;
+import cc.photos.uploader.tasks.ByteUploadTask;
+import cc.photos.uploader.tasks.ItemCreationTask;
+import cc.photos.uploader.util.ProgressLog;
+import com.google.photos.library.v1.PhotosLibraryClient;
+import com.google.photos.types.proto.MediaItem;
+import com.google.rpc.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking counterpart of {@link UploadService}, for embedding the uploader in another application.
+ *
+ * <p>Each {@link AlbumEntry} submitted returns a {@link CompletableFuture} of the created
+ * {@link MediaItem}, or fails with an {@link UploadFailedException} telling at which stage and why.
+ * Entries may be submitted from any number of threads. Their bytes are uploaded in parallel, and upload
+ * tokens are turned into media items by a single thread, in batches of up to
+ * {@link UploadService#NUM_BATCH_SIZE_DEFAULT}, as the Library API requires creation to be serial.
+ *
+ * <p>At most {@code maxPending} entries are accepted at a time, from submission until their future
+ * completes. Beyond that, {@link #submit} blocks and {@link #trySubmit} gives up after its timeout, so
+ * that a fast producer is slowed down to the pace of the uploads instead of queueing without bound.
+ *
+ * <p>Uploads are made like those of {@link UploadService}: with the same tuning profile, resumable
+ * sessions, in-flight byte budget, read-ahead pool and JMX-registered bandwidth limiter, through a
+ * {@link PhotosGateway} so that they are recorded in the trace of the run and can be replayed.
+ *
+ * <p>Cancelling a future does not stop an upload that has already started.
+ */
+public class AsyncUploadService implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncUploadService.class);
+
+    /** Default number of entries accepted at a time. */
+    public static final int MAX_PENDING_DEFAULT = 500;
+
+    /**
+     * Time to wait for more upload tokens once one is available, so that uploads finishing close
+     * together share a `mediaItems.batchCreate` call.
+     */
+    private static final long BATCH_LINGER_MILLIS = 1000;
+
+    private final PhotosGateway gateway;
+    private final UploadResources resources;
+    private final ProgressLog progressLog;
+    private final Semaphore admission;
+    private final ExecutorService uploadExecutor;
+    private final BlockingQueue<PendingItem> creationQueue;
+    private final Thread creationThread;
+    private volatile boolean closed;
+    /** Set when {@link #close} was interrupted, from then on uploads that finish are failed instead of created. */
+    private volatile boolean aborted;
+
+    public AsyncUploadService(PhotosLibraryClient client) {
+        this(client, MAX_PENDING_DEFAULT);
+    }
+
+    /**
+     * @param client API client.
+     * @param maxPending Number of entries accepted at a time, see {@link #submit}.
+     */
+    public AsyncUploadService(PhotosLibraryClient client, int maxPending) {
+        this(PhotosGateway.of(client), maxPending, UploadService.StatePaths.fromEnvironment());
+    }
+
+    /**
+     * @param gateway API to call, e.g. a {@link cc.photos.uploader.trace.ReplayGateway} to replay a trace.
+     * @param maxPending Number of entries accepted at a time, see {@link #submit}.
+     * @param statePaths Where the tuning profile and the resumable upload sessions are read and written.
+     */
+    public AsyncUploadService(PhotosGateway gateway, int maxPending, UploadService.StatePaths statePaths) {
+        this.gateway = gateway;
+        this.resources = new UploadResources(statePaths);
+        this.progressLog = new ProgressLog();
+        // Fair, so that blocked submitters are admitted in the order they arrived.
+        this.admission = new Semaphore(maxPending, true);
+        AtomicInteger uploadThreads = new AtomicInteger();
+        this.uploadExecutor = Executors.newFixedThreadPool(resources.numByteUploadThreads(),
+                r -> new Thread(r, "upload-" + uploadThreads.incrementAndGet()));
+        // Every item in the queue holds a permit, so adding to it never blocks.
+        this.creationQueue = new ArrayBlockingQueue<>(maxPending);
+        this.creationThread = new Thread(this::createMediaItems, "item-creation");
+        this.creationThread.start();
+    }
+
+    /**
+     * Submits an entry, waiting while {@code maxPending} entries are already pending.
+     *
+     * @param entry Entry to upload and add to its album.
+     * @return The media item, once created.
+     */
+    public CompletableFuture<MediaItem> submit(AlbumEntry entry) throws InterruptedException {
+        checkOpen();
+        admission.acquire();
+        return start(entry);
+    }
+
+    /**
+     * Submits an entry, unless {@code maxPending} entries are still pending after the timeout.
+     *
+     * @param entry Entry to upload and add to its album.
+     * @param timeout How long to wait for a pending entry to complete.
+     * @return The media item, once created, or empty if the entry was not accepted.
+     */
+    public Optional<CompletableFuture<MediaItem>> trySubmit(AlbumEntry entry, Duration timeout)
+            throws InterruptedException {
+        checkOpen();
+        if (!admission.tryAcquire(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+            return Optional.empty();
+        }
+        return Optional.of(start(entry));
+    }
+
+    /**
+     * Number of entries that can be submitted without waiting.
+     */
+    public int availableCapacity() {
+        return admission.availablePermits();
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("The upload service is closed.");
+        }
+    }
+
+    private synchronized CompletableFuture<MediaItem> start(AlbumEntry entry) {
+        PendingItem item = new PendingItem(entry, new CompletableFuture<>());
+        ProgressLog.EVENTS.debug("scheduled {} album={}", entry.mediaPath(), entry.album().getTitle());
+        progressLog.scheduled();
+        // Synchronized so that uploads are queued in the order they are created, which the read-ahead pool
+        // prefetches in.
+        ByteUploadTask task = resources.newUpload(gateway, entry);
+        try {
+            uploadExecutor.execute(new UploadJob(item, task));
+        } catch (RejectedExecutionException e) {
+            resources.release(entry, 0);
+            admission.release();
+            throw new IllegalStateException("The upload service is closed.", e);
+        }
+        return item.future();
+    }
+
+    private void upload(PendingItem item, ByteUploadTask task) {
+        if (item.future().isDone()) {
+            // Cancelled before its upload started.
+            resources.release(item.entry(), 0);
+            admission.release();
+            return;
+        }
+        ByteUploadTask.ByteUploadResult uploadResult;
+        int admitted = 0;
+        try {
+            admitted = resources.admit(item.entry());
+            uploadResult = task.call();
+        } catch (InterruptedException e) {
+            // Interrupted by close() while waiting for the budget.
+            uploadResult = ByteUploadTask.ByteUploadResult.createFailureResultWithThrowable(item.entry(), e);
+        } finally {
+            resources.release(item.entry(), admitted);
+        }
+        if (uploadResult.isOk()) {
+            progressLog.uploaded();
+            ProgressLog.EVENTS.debug("uploaded {}", item.entry().mediaPath());
+            creationQueue.add(item.withUpload(uploadResult));
+            if (aborted) {
+                // The creation thread may have stopped before the item was queued.
+                failQueued(new CancellationException("The upload service was closed before creation."));
+            }
+        } else {
+            progressLog.uploadFailed();
+            ProgressLog.EVENTS.debug("upload failed {}: {}", item.entry().mediaPath(), uploadResult.error);
+            fail(item, new UploadFailedException(item.entry(), Stage.UPLOAD, uploadResult.error, null));
+        }
+        progressLog.logSummaryIfDue();
+    }
+
+    /*
+    Runs on the creation thread until the service is closed and every upload has been created.
+     */
+    private void createMediaItems() {
+        List<PendingItem> batch = new ArrayList<>(UploadService.NUM_BATCH_SIZE_DEFAULT);
+        try {
+            while (!(closed && uploadExecutor.isTerminated() && creationQueue.isEmpty())) {
+                PendingItem first = creationQueue.poll(BATCH_LINGER_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BATCH_LINGER_MILLIS);
+                while (batch.size() < UploadService.NUM_BATCH_SIZE_DEFAULT) {
+                    PendingItem next = creationQueue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                createBatch(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // Closed without waiting, fail whatever was not created.
+            for (PendingItem item : batch) {
+                fail(item, new UploadFailedException(item.entry(), Stage.CREATION, e, null));
+            }
+            failQueued(e);
+        }
+    }
+
+    private void failQueued(Exception cause) {
+        List<PendingItem> queued = new ArrayList<>();
+        creationQueue.drainTo(queued);
+        for (PendingItem item : queued) {
+            fail(item, new UploadFailedException(item.entry(), Stage.CREATION, cause, null));
+        }
+    }
+
+    private void createBatch(List<PendingItem> batch) {
+        List<ByteUploadTask.ByteUploadResult> itemsToCreate = new ArrayList<>(batch.size());
+        batch.forEach(item -> itemsToCreate.add(item.upload()));
+        Map<String, ItemCreationTask.ItemCreationResult> results;
+        try {
+            results = new ItemCreationTask(gateway, itemsToCreate).call();
+        } catch (RuntimeException e) {
+            // Fail this batch only, the creation thread must keep serving the others.
+            LOG.error("Unable to create a batch of {} items.", batch.size(), e);
+            for (PendingItem item : batch) {
+                fail(item, new UploadFailedException(item.entry(), Stage.CREATION, e, null));
+            }
+            progressLog.creationFailed(batch.size());
+            return;
+        }
+
+        int created = 0;
+        for (PendingItem item : batch) {
+            ItemCreationTask.ItemCreationResult result = results.get(item.upload().uploadToken);
+            if (result != null && result.isOk()) {
+                created++;
+                //noinspection OptionalGetWithoutIsPresent
+                MediaItem mediaItem = result.mediaItem.get();
+                admission.release();
+                item.future().complete(mediaItem);
+            } else if (result != null) {
+                fail(item, new UploadFailedException(item.entry(), Stage.CREATION,
+                        result.error.orElse(null), result.status.orElse(null)));
+            } else {
+                fail(item, new UploadFailedException(item.entry(), Stage.CREATION,
+                        new Exception("Upload token was not returned."), null));
+            }
+        }
+        progressLog.created(created);
+        progressLog.creationFailed(batch.size() - created);
+    }
+
+    private void fail(PendingItem item, UploadFailedException exception) {
+        admission.release();
+        item.future().completeExceptionally(exception);
+    }
+
+    /**
+     * Stops accepting entries and waits until every entry already accepted is created or has failed. If
+     * the calling thread is interrupted while waiting, uploads in flight are cancelled and their entries
+     * fail.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        uploadExecutor.shutdown();
+        try {
+            //noinspection ResultOfMethodCallIgnored
+            uploadExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            creationThread.join();
+        } catch (InterruptedException e) {
+            aborted = true;
+            CancellationException cancelled = new CancellationException(
+                    "The upload service was closed before the upload started.");
+            for (Runnable job : uploadExecutor.shutdownNow()) {
+                PendingItem item = ((UploadJob) job).item;
+                resources.release(item.entry(), 0);
+                progressLog.uploadFailed();
+                fail(item, new UploadFailedException(item.entry(), Stage.UPLOAD, cancelled, null));
+            }
+            creationThread.interrupt();
+            resources.close();
+            Thread.currentThread().interrupt();
+            return;
+        }
+        progressLog.logSummary();
+        resources.logState();
+        resources.close();
+        LOG.info("Asynchronous upload service closed.");
+    }
+
+    /** Stage of the pipeline at which an entry failed. */
+    public enum Stage {
+        /** Uploading the bytes of the file. */
+        UPLOAD,
+        /** Creating the media item from its upload token. */
+        CREATION
+    }
+
+    /**
+     * Failure of a submitted entry. The cause, if any, is the {@link Throwable} that made the stage fail;
+     * creations rejected by the API carry the {@link Status} it returned instead.
+     */
+    public static class UploadFailedException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final transient AlbumEntry entry;
+        private final Stage stage;
+        private final transient Status status;
+
+        public UploadFailedException(AlbumEntry entry, Stage stage, Throwable cause, Status status) {
+            super(stage + " failed for " + entry.mediaPath()
+                    + (status != null ? ": " + status.getMessage() : cause != null ? ": " + cause.getMessage() : ""),
+                    cause);
+            this.entry = entry;
+            this.stage = stage;
+            this.status = status;
+        }
+
+        public AlbumEntry getEntry() {
+            return entry;
+        }
+
+        public Stage getStage() {
+            return stage;
+        }
+
+        public Optional<Status> getStatus() {
+            return Optional.ofNullable(status);
+        }
+    }
+
+    /**
+     * Upload of an accepted entry, as queued in the executor so that {@link #close} can fail the ones it
+     * cancels.
+     */
+    private final class UploadJob implements Runnable {
+        private final PendingItem item;
+        private final ByteUploadTask task;
+
+        UploadJob(PendingItem item, ByteUploadTask task) {
+            this.item = item;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            upload(item, task);
+        }
+    }
+
+    /**
+     * An accepted entry, with its upload once done.
+     */
+    private record PendingItem(AlbumEntry entry, CompletableFuture<MediaItem> future,
+                               ByteUploadTask.ByteUploadResult upload) {
+        PendingItem(AlbumEntry entry, CompletableFuture<MediaItem> future) {
+            this(entry, future, null);
+        }
+
+        PendingItem withUpload(ByteUploadTask.ByteUploadResult upload) {
+            return new PendingItem(entry, future, upload);
+        }
+    }
+}
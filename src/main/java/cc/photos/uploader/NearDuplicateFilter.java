@@ -0,0 +1,152 @@
+package cc.photos.uploader;
+
+import cc.photos.uploader.model.AlbumEntry;
+import cc.photos.uploader.util.BkTree;
+import cc.photos.uploader.util.PerceptualHash;
+import com.google.common.base.Stopwatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import java.io.IOException;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Finds images that look alike within an album, such as burst shots or re-encoded exports of the same
+ * frame, before their bytes are uploaded.
+ *
+ * <p>A {@link PerceptualHash} of every image is computed in parallel on a pool sized to the number of
+ * cores. Entries are then visited in order and looked up in a {@link BkTree} per album: an image whose
+ * hash is within the maximum distance of an earlier one is a near duplicate of it, and is reported, or
+ * reported and dropped, depending on the {@link Mode}. Files that are not images ImageIO can decode,
+ * e.g. videos, are always kept.
+ */
+public class NearDuplicateFilter {
+    private static final Logger LOG = LoggerFactory.getLogger(NearDuplicateFilter.class);
+
+    /** What to do with near duplicates. */
+    public enum Mode {
+        /** Do not look for near duplicates. */
+        OFF,
+        /** Log near duplicates and upload them anyway. */
+        REPORT,
+        /** Log near duplicates and do not upload them. */
+        SKIP;
+
+        public static Mode parse(String mode) {
+            return valueOf(mode.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private final Mode mode;
+    private final int maxDistance;
+    private final int parallelism;
+
+    /**
+     * @param mode What to do with near duplicates.
+     * @param maxDistance Largest Hamming distance between the hashes of near duplicates.
+     */
+    public NearDuplicateFilter(Mode mode, int maxDistance) {
+        this(mode, maxDistance, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param mode What to do with near duplicates.
+     * @param maxDistance Largest Hamming distance between the hashes of near duplicates.
+     * @param parallelism Number of images hashed in parallel.
+     */
+    public NearDuplicateFilter(Mode mode, int maxDistance, int parallelism) {
+        this.mode = mode;
+        this.maxDistance = maxDistance;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Looks for near duplicates among the entries.
+     *
+     * @param entries Entries about to be uploaded.
+     * @return The entries to upload: all of them unless the mode is {@link Mode#SKIP}.
+     */
+    public List<AlbumEntry> filter(List<AlbumEntry> entries) throws InterruptedException {
+        if (mode == Mode.OFF || entries.isEmpty()) {
+            return entries;
+        }
+        Stopwatch timer = Stopwatch.createStarted();
+        long[] hashes = new long[entries.size()];
+        boolean[] hashed = new boolean[entries.size()];
+        hashAll(entries, hashes, hashed);
+        LOG.info("Computed perceptual hashes of {} entries in {}", entries.size(), timer);
+
+        Map<String, BkTree<AlbumEntry>> hashesByAlbum = new HashMap<>();
+        List<AlbumEntry> kept = new ArrayList<>(entries.size());
+        int nearDuplicates = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            AlbumEntry entry = entries.get(i);
+            if (!hashed[i]) {
+                kept.add(entry);
+                continue;
+            }
+            BkTree<AlbumEntry> albumHashes = hashesByAlbum.computeIfAbsent(entry.album().getTitle(), title -> new BkTree<>());
+            Optional<BkTree.Match<AlbumEntry>> match = albumHashes.nearest(hashes[i], maxDistance);
+            if (match.isPresent()) {
+                nearDuplicates++;
+                LOG.info("Near duplicate: {} looks like {} (distance {})", entry.mediaPath(),
+                        match.get().value().mediaPath(), match.get().distance());
+                if (mode == Mode.SKIP) {
+                    continue;
+                }
+            } else {
+                // Only the first image of a group is indexed, so that a slow drift across a long burst does not
+                // chain unrelated frames together.
+                albumHashes.add(hashes[i], entry);
+            }
+            kept.add(entry);
+        }
+        LOG.info("Found {} near duplicates among {} entries{}.", nearDuplicates, entries.size(),
+                mode == Mode.SKIP ? ", they will not be uploaded" : "");
+        return kept;
+    }
+
+    private void hashAll(List<AlbumEntry> entries, long[] hashes, boolean[] hashed) throws InterruptedException {
+        // Decoded images are small, keep ImageIO from caching the streams in temporary files.
+        ImageIO.setUseCache(false);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.submit(() -> IntStream.range(0, entries.size()).parallel().forEach(i -> {
+                OptionalLong hash = hash(entries.get(i));
+                if (hash.isPresent()) {
+                    hashes[i] = hash.getAsLong();
+                    hashed[i] = true;
+                }
+            })).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to compute perceptual hashes.", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static OptionalLong hash(AlbumEntry entry) {
+        String mimeType = URLConnection.guessContentTypeFromName(entry.mediaPath().getName());
+        if (mimeType != null && !mimeType.startsWith("image/")) {
+            return OptionalLong.empty();
+        }
+        try {
+            return PerceptualHash.dHash(entry.mediaPath());
+        } catch (IOException | RuntimeException e) {
+            // Unsupported variants, e.g. CMYK JPEGs, are uploaded without being compared.
+            LOG.debug("Unable to compute the perceptual hash of {}: {}", entry.mediaPath(), e.getMessage());
+            return OptionalLong.empty();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package cc.photos.uploader;
+
+import cc.photos.uploader.model.AlbumEntry;
+import cc.photos.uploader.state.TuningProfile;
+import cc.photos.uploader.tasks.ByteUploadTask;
+import cc.photos.uploader.util.BandwidthLimiter;
+import cc.photos.uploader.util.BandwidthSchedule;
+import com.google.photos.library.v1.PhotosLibraryClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Calibrates the upload chunk size and concurrency against the real link and file mix.
+ *
+ * <p>Uploads the bytes of a sample of the input in a series of short trials, first sweeping the
+ * chunk size at the default concurrency and then sweeping the concurrency at the best chunk size.
+ * Each trial is bounded both in bytes and in time. The settings with the best throughput, among
+ * those with an acceptable error rate, are returned as a {@link TuningProfile}.
+ *
+ * <p>Uploads still running when a trial times out are interrupted and count as failed, but the bytes
+ * they sent until then count toward the throughput, so that trials of large files are not scored by
+ * the few that completed. The next trial waits for them to end, for at most another trial timeout,
+ * so that they do not share its link.
+ *
+ * <p>Probe uploads are never turned into media items, their upload tokens simply expire.
+ */
+public class ProbeService {
+    private static final Logger LOG = LoggerFactory.getLogger(ProbeService.class);
+
+    private static final int MB = 1024 * 1024;
+    private static final int[] CHUNK_SIZES = {4 * MB, 8 * MB, 16 * MB, ByteUploadTask.CHUNK_SIZE_DEFAULT, 64 * MB};
+    private static final int[] CONCURRENCIES = {1, 2, 4, UploadService.NUM_BYTE_UPLOAD_THREAD_DEFAULT, 8, 12, 16};
+
+    /** A trial never uploads the sample more than this many times over, however small its files. */
+    private static final int MAX_PASSES_OVER_SAMPLE = 4;
+
+    /** Trials where more than this fraction of uploads failed are not considered. */
+    private static final double MAX_ERROR_RATE = 0.1;
+
+    private final PhotosLibraryClient client;
+    private final int sampleSize;
+    private final long trialBytes;
+    private final Duration trialTimeout;
+    private int nextSampleOffset;
+
+    /**
+     * @param client API client.
+     * @param sampleSize Number of input entries to sample.
+     * @param trialBytes Number of bytes uploaded by each trial.
+     * @param trialTimeout Time after which a trial is stopped.
+     */
+    public ProbeService(PhotosLibraryClient client, int sampleSize, long trialBytes, Duration trialTimeout) {
+        this.client = client;
+        this.sampleSize = sampleSize;
+        this.trialBytes = trialBytes;
+        this.trialTimeout = trialTimeout;
+    }
+
+    /**
+     * Runs the calibration.
+     *
+     * @param albumEntries The input of the run, a sample of which is uploaded.
+     * @return The best settings found.
+     */
+    public TuningProfile probe(List<AlbumEntry> albumEntries) throws InterruptedException {
+        List<AlbumEntry> sample = sample(albumEntries);
+        if (sample.isEmpty()) {
+            throw new IllegalArgumentException("No readable files to probe with.");
+        }
+        LOG.info("Probing with a sample of {} files, {} MB per trial.", sample.size(), trialBytes / MB);
+
+        Trial best = null;
+        for (int chunkSize : CHUNK_SIZES) {
+            best = better(best, runTrial(sample, chunkSize, UploadService.NUM_BYTE_UPLOAD_THREAD_DEFAULT));
+        }
+        int bestChunkSize = best.chunkSize();
+        for (int concurrency : CONCURRENCIES) {
+            if (concurrency != UploadService.NUM_BYTE_UPLOAD_THREAD_DEFAULT) {
+                best = better(best, runTrial(sample, bestChunkSize, concurrency));
+            }
+        }
+
+        if (best.score() == 0) {
+            LOG.warn("Every trial had an error rate above {}%, keeping the default settings.", (int) (MAX_ERROR_RATE * 100));
+            return new TuningProfile(ByteUploadTask.CHUNK_SIZE_DEFAULT, UploadService.NUM_BYTE_UPLOAD_THREAD_DEFAULT,
+                    0, best.errorRate(), Instant.now());
+        }
+        return new TuningProfile(best.chunkSize(), best.concurrency(), best.bytesPerSecond(), best.errorRate(),
+                Instant.now());
+    }
+
+    /*
+    Picks entries spread evenly over the input, so that the sample has the same mix of file sizes.
+     */
+    private List<AlbumEntry> sample(List<AlbumEntry> albumEntries) {
+        List<AlbumEntry> sample = new ArrayList<>(sampleSize);
+        int stride = Math.max(1, albumEntries.size() / sampleSize);
+        for (int i = 0; i < albumEntries.size() && sample.size() < sampleSize; i += stride) {
+            AlbumEntry entry = albumEntries.get(i);
+            if (entry.mediaPath().canRead()) {
+                sample.add(entry);
+            }
+        }
+        return sample;
+    }
+
+    private Trial runTrial(List<AlbumEntry> sample, int chunkSize, int concurrency) throws InterruptedException {
+        // Cycle through the sample so that consecutive trials do not always upload the same files, and give
+        // every worker at least one file.
+        List<Callable<ByteUploadTask.ByteUploadResult>> tasks = new ArrayList<>();
+        // An unlimited limiter per upload, to count the bytes it read for upload.
+        List<BandwidthLimiter> counters = new ArrayList<>();
+        AtomicInteger started = new AtomicInteger();
+        long bytes = 0;
+        while ((bytes < trialBytes && tasks.size() < sample.size() * MAX_PASSES_OVER_SAMPLE)
+                || tasks.size() < concurrency) {
+            AlbumEntry entry = sample.get(nextSampleOffset++ % sample.size());
+            BandwidthLimiter counter = new BandwidthLimiter(new BandwidthSchedule(0, List.of()));
+            ByteUploadTask task = new ByteUploadTask(client, entry, null, counter, chunkSize);
+            tasks.add(() -> {
+                started.incrementAndGet();
+                return task.call();
+            });
+            counters.add(counter);
+            bytes += entry.mediaPath().length();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        long uploadedBytes = 0;
+        int attempts = 0;
+        int failures = 0;
+        int timedOut = 0;
+        long start = System.nanoTime();
+        long elapsedNanos;
+        try {
+            List<Future<ByteUploadTask.ByteUploadResult>> results =
+                    executor.invokeAll(tasks, trialTimeout.toMillis(), TimeUnit.MILLISECONDS);
+            elapsedNanos = Math.max(1, System.nanoTime() - start);
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    ByteUploadTask.ByteUploadResult uploadResult = results.get(i).get();
+                    attempts++;
+                    if (uploadResult.isOk()) {
+                        uploadedBytes += uploadResult.entryBeingUploaded.mediaPath().length();
+                    } else {
+                        failures++;
+                    }
+                } catch (CancellationException e) {
+                    // Still running when the trial timed out, or never started. The last chunk read may not
+                    // have been sent yet.
+                    uploadedBytes += Math.max(0, counters.get(i).getTotalBytes() - chunkSize);
+                } catch (ExecutionException e) {
+                    attempts++;
+                    failures++;
+                }
+            }
+            // Cancelled tasks that had started were still uploading, they count as failed.
+            timedOut = started.get() - attempts;
+            attempts += timedOut;
+            failures += timedOut;
+        } finally {
+            // The uploads still running were interrupted when the trial timed out.
+            executor.shutdown();
+        }
+        if (timedOut > 0) {
+            LOG.info("Waiting for {} uploads still running after the trial timed out.", timedOut);
+        }
+        // Wait for them so that they do not slow down the next trial, but not longer than a trial.
+        if (!executor.awaitTermination(trialTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+            LOG.warn("Uploads of the trial did not end within {}s, starting the next trial.",
+                    trialTimeout.toSeconds());
+            executor.shutdownNow();
+        }
+
+        Trial trial = new Trial(chunkSize, concurrency,
+                (long) (uploadedBytes / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1))),
+                attempts == 0 ? 1.0 : (double) failures / attempts);
+        LOG.info("Trial chunkSize={} MB concurrency={}: {} KB/s, {} of {} uploads failed",
+                chunkSize / MB, concurrency, trial.bytesPerSecond() / 1024, failures, attempts);
+        return trial;
+    }
+
+    private static Trial better(Trial best, Trial candidate) {
+        return best == null || candidate.score() > best.score() ? candidate : best;
+    }
+
+    private record Trial(int chunkSize, int concurrency, long bytesPerSecond, double errorRate) {
+        double score() {
+            return errorRate > MAX_ERROR_RATE ? 0 : bytesPerSecond * (1 - errorRate);
+        }
+    }
+}
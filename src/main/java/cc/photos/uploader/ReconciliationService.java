@@ -0,0 +1,232 @@
+package cc.photos.uploader;
+
+import cc.photos.uploader.model.AlbumEntry;
+import cc.photos.uploader.state.LibraryIndex;
+import cc.photos.uploader.util.ExifDate;
+import com.google.common.base.Stopwatch;
+import com.google.photos.library.v1.PhotosLibraryClient;
+import com.google.photos.types.proto.MediaItem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Filters out entries that are already in the library, before any bytes are sent.
+ *
+ * <p>The media items the uploader can see, and the contents of every album the input targets, are
+ * listed into a {@link LibraryIndex}. Albums are listed in parallel, each paging through its own
+ * results, alongside the listing of the library. The index is cached and only the albums missing from
+ * it are listed until it expires. Albums this run adds items to are dropped from the cache, so that the
+ * next run lists them again rather than trust contents that are out of date.
+ *
+ * <p>Each entry is then either:
+ * <ul>
+ *     <li>already in its album, when the album holds a media item with the same filename that was created
+ *     when the file was, and dropped;</li>
+ *     <li>already in the library, when a media item has the same filename and was created when the file
+ *     was, and added to its album as that media item;</li>
+ *     <li>or uploaded.</li>
+ * </ul>
+ *
+ * <p>The API exposes neither the size nor the content of media items, so matches are by name and time.
+ * Google Photos dates a media item by the time its photo was taken, so a file is looked up at the time
+ * in its EXIF metadata, and at its last modified time for files without one or uploaded by tools that
+ * used it.
+ * Both must match for an entry to be dropped or linked, so that a distinct file that happens to share a
+ * name, e.g. from a second camera, is uploaded. Files renamed since they were uploaded are uploaded again.
+ */
+public class ReconciliationService {
+    private static final Logger LOG = LoggerFactory.getLogger(ReconciliationService.class);
+
+    private static final int MAX_PARALLEL_LISTINGS = 8;
+
+    private final PhotosLibraryClient client;
+    private final Path indexFile;
+    private final Duration timeToLive;
+
+    /**
+     * @param client API client.
+     * @param indexFile Where the index is cached between runs.
+     * @param timeToLive How long a cached index is used before the library is listed again.
+     */
+    public ReconciliationService(PhotosLibraryClient client, Path indexFile, Duration timeToLive) {
+        this.client = client;
+        this.indexFile = indexFile;
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Sorts the entries by what is already in the library. If the library cannot be listed, all the
+     * entries are uploaded.
+     *
+     * @param entries Entries about to be uploaded.
+     * @return What to do with each entry.
+     */
+    public Reconciliation reconcile(List<AlbumEntry> entries) throws InterruptedException {
+        if (entries.isEmpty()) {
+            return new Reconciliation(entries, Map.of(), 0);
+        }
+        Stopwatch timer = Stopwatch.createStarted();
+        LibraryIndex index;
+        try {
+            index = loadIndex(entries);
+        } catch (ExecutionException e) {
+            LOG.warn("Unable to list the library, all entries will be uploaded: {}", e.getCause().toString());
+            return new Reconciliation(entries, Map.of(), 0);
+        }
+
+        List<AlbumEntry> toUpload = new ArrayList<>(entries.size());
+        Map<AlbumEntry, String> toLink = new LinkedHashMap<>();
+        int inAlbum = 0;
+        for (AlbumEntry entry : entries) {
+            String filename = entry.mediaPath().getName();
+            long[] creationTimes = creationTimes(entry);
+            if (inAlbum(index, entry.album().getId(), filename, creationTimes)) {
+                inAlbum++;
+                continue;
+            }
+            Optional<String> mediaItemId = findInLibrary(index, filename, creationTimes);
+            if (mediaItemId.isPresent()) {
+                toLink.put(entry, mediaItemId.get());
+            } else {
+                toUpload.add(entry);
+            }
+        }
+        // Items are about to be added to these albums.
+        Set<String> written = new HashSet<>();
+        toUpload.forEach(entry -> written.add(entry.album().getId()));
+        toLink.keySet().forEach(entry -> written.add(entry.album().getId()));
+        save(index.withoutAlbums(written));
+        LOG.info("Reconciled {} entries with the library in {}: {} already in their album, {} to add from the "
+                + "library, {} to upload.", entries.size(), timer.stop(), inAlbum, toLink.size(), toUpload.size());
+        return new Reconciliation(toUpload, toLink, inAlbum);
+    }
+
+    /**
+     * Times at which the media item of a file may have been created: the time in its EXIF metadata, if
+     * any, and its last modified time.
+     */
+    private static long[] creationTimes(AlbumEntry entry) {
+        long modified = entry.mediaPath().lastModified() / 1000;
+        Optional<Instant> captured;
+        try {
+            captured = ExifDate.captureTime(entry.mediaPath(), ZoneId.systemDefault());
+        } catch (IOException e) {
+            captured = Optional.empty();
+        }
+        if (captured.isEmpty() || captured.get().getEpochSecond() == modified) {
+            return new long[]{modified};
+        }
+        return new long[]{captured.get().getEpochSecond(), modified};
+    }
+
+    private static boolean inAlbum(LibraryIndex index, String albumId, String filename, long[] creationTimes) {
+        for (long creationTime : creationTimes) {
+            if (index.inAlbum(albumId, filename, creationTime)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Optional<String> findInLibrary(LibraryIndex index, String filename, long[] creationTimes) {
+        for (long creationTime : creationTimes) {
+            Optional<String> mediaItemId = index.findInLibrary(filename, creationTime);
+            if (mediaItemId.isPresent()) {
+                return mediaItemId;
+            }
+        }
+        return Optional.empty();
+    }
+
+    private LibraryIndex loadIndex(List<AlbumEntry> entries) throws InterruptedException, ExecutionException {
+        Optional<LibraryIndex> cached = LibraryIndex.load(indexFile, timeToLive);
+        Set<String> albumIds = new LinkedHashSet<>();
+        for (AlbumEntry entry : entries) {
+            if (entry.album().getId() != null && !entry.album().getId().isEmpty()
+                    && (cached.isEmpty() || !cached.get().hasAlbum(entry.album().getId()))) {
+                albumIds.add(entry.album().getId());
+            }
+        }
+        if (cached.isPresent() && albumIds.isEmpty()) {
+            return cached.get();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(MAX_PARALLEL_LISTINGS, albumIds.size() + 1));
+        try {
+            Future<LibraryIndex> library = cached.isPresent()
+                    ? null
+                    : executor.submit(this::listLibrary);
+            Map<String, Future<long[]>> albums = new LinkedHashMap<>();
+            for (String albumId : albumIds) {
+                albums.put(albumId, executor.submit(() -> listAlbum(albumId)));
+            }
+            LibraryIndex index = library != null ? library.get() : cached.get();
+            Map<String, long[]> contents = new HashMap<>();
+            for (Map.Entry<String, Future<long[]>> album : albums.entrySet()) {
+                contents.put(album.getKey(), album.getValue().get());
+            }
+            return index.withAlbums(contents);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private LibraryIndex listLibrary() {
+        Stopwatch timer = Stopwatch.createStarted();
+        Instant builtAt = Instant.now();
+        Map<Long, String> items = new HashMap<>();
+        for (MediaItem item : client.listMediaItems().iterateAll()) {
+            long created = item.getMediaMetadata().getCreationTime().getSeconds();
+            items.put(LibraryIndex.libraryKey(item.getFilename(), created), item.getId());
+        }
+        LOG.info("Listed {} media items of the library in {}", items.size(), timer.stop());
+        return LibraryIndex.of(builtAt, Map.of(), items);
+    }
+
+    private long[] listAlbum(String albumId) {
+        List<Long> keys = new ArrayList<>();
+        for (MediaItem item : client.searchMediaItems(albumId).iterateAll()) {
+            long created = item.getMediaMetadata().getCreationTime().getSeconds();
+            keys.add(LibraryIndex.albumKey(albumId, item.getFilename(), created));
+        }
+        LOG.debug("Listed {} media items of album {}", keys.size(), albumId);
+        return keys.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    private void save(LibraryIndex index) {
+        try {
+            index.save(indexFile);
+        } catch (IOException e) {
+            // The next run lists the library again.
+            LOG.warn("Unable to save library index {}: {}", indexFile, e.getMessage());
+        }
+    }
+
+    /**
+     * What to do with the entries of the input.
+     *
+     * @param toUpload Entries to upload.
+     * @param toLink Entries to add to their album as a media item already in the library, with its id.
+     * @param alreadyInAlbum Number of entries dropped because they are already in their album.
+     */
+    public record Reconciliation(List<AlbumEntry> toUpload, Map<AlbumEntry, String> toLink, int alreadyInAlbum) {}
+}
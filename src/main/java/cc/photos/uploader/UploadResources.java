@@ -0,0 +1,176 @@
+package cc.photos.uploader;
+
+import cc.photos.uploader.gateway.PhotosGateway;
+import cc.photos.uploader.model.AlbumEntry;
+import cc.photos.uploader.state.ResumableUploadJournal;
+import cc.photos.uploader.state.TuningProfile;
+import cc.photos.uploader.tasks.ByteUploadTask;
+import cc.photos.uploader.util.BandwidthLimiter;
+import cc.photos.uploader.util.BandwidthSchedule;
+import cc.photos.uploader.util.ByteBudget;
+import cc.photos.uploader.util.Constants;
+import cc.photos.uploader.util.ReadAheadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+
+/**
+ * What the byte uploads of {@link UploadService} and {@link AsyncUploadService} are made with: the
+ * settings of the tuning profile, the resumable upload sessions, the bandwidth limiter and read-ahead
+ * pool registered with JMX, and the budget of bytes in flight.
+ *
+ * <p>An upload is {@link #admit admitted} by the budget before it starts, and {@link #release released}
+ * once it ended.
+ */
+final class UploadResources implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(UploadResources.class);
+
+    private final int numByteUploadThreads;
+    private final int chunkSize;
+    private final ResumableUploadJournal resumableUploadJournal;
+    private final BandwidthLimiter bandwidthLimiter;
+    /** Pool of prefetched file heads, or null if files are not read ahead. */
+    private final ReadAheadPool readAheadPool;
+    /** Budget of file bytes held in memory by uploads in flight, or null if only the thread count bounds them. */
+    private final ByteBudget byteBudget;
+
+    /**
+     * @param statePaths Where the tuning profile and the resumable upload sessions are read and written.
+     */
+    UploadResources(UploadService.StatePaths statePaths) {
+        // Use the settings measured by the probe mode, if it was run.
+        TuningProfile tuningProfile = TuningProfile.load(statePaths.tuningProfile())
+                .orElse(new TuningProfile(ByteUploadTask.CHUNK_SIZE_DEFAULT,
+                        UploadService.NUM_BYTE_UPLOAD_THREAD_DEFAULT, 0, 0, null));
+        if (tuningProfile.measuredAt() != null) {
+            LOG.info("Using tuning profile measured at {}: chunkSize={} concurrency={}",
+                    tuningProfile.measuredAt(), tuningProfile.chunkSize(), tuningProfile.concurrency());
+        }
+        this.byteBudget = Constants.UPLOADER_INFLIGHT_BYTES > 0 ? new ByteBudget(Constants.UPLOADER_INFLIGHT_BYTES) : null;
+        // With a byte budget, the budget bounds the uploads in flight and the threads only cap how many small
+        // files can share it.
+        this.numByteUploadThreads = byteBudget != null
+                ? Math.max(tuningProfile.concurrency(), Constants.UPLOADER_INFLIGHT_MAX_UPLOADS)
+                : tuningProfile.concurrency();
+        // An upload holds a whole chunk in memory, whatever the budget admitted it with.
+        this.chunkSize = byteBudget != null
+                ? ByteUploadTask.chunkSizeWithin(tuningProfile.chunkSize(), byteBudget.getBudgetBytes())
+                : tuningProfile.chunkSize();
+        this.resumableUploadJournal = new ResumableUploadJournal(
+                new File(statePaths.stateDir(), "resumable"),
+                Constants.UPLOADER_RESUMABLE_THRESHOLD,
+                Duration.ofHours(Constants.UPLOADER_RESUMABLE_VALIDITY_HOURS));
+        this.bandwidthLimiter = new BandwidthLimiter(BandwidthSchedule.parse(
+                Constants.UPLOADER_BANDWIDTH_LIMIT, Constants.UPLOADER_BANDWIDTH_SCHEDULE));
+        this.readAheadPool = Constants.UPLOADER_READ_AHEAD_BYTES > 0
+                ? new ReadAheadPool(Constants.UPLOADER_READ_AHEAD_BYTES, Constants.UPLOADER_READ_AHEAD_FILES, chunkSize)
+                : null;
+        registerBandwidthLimiter();
+        registerReadAheadPool();
+    }
+
+    /** Number of threads uploading bytes. */
+    int numByteUploadThreads() {
+        return numByteUploadThreads;
+    }
+
+    /**
+     * Creates the upload of an entry. Uploads are expected to start in the order they are created, the
+     * read-ahead pool prefetches in that order.
+     *
+     * @param gateway API to upload to.
+     * @param entry Entry to upload.
+     * @return The upload, to run once {@link #admit admitted}.
+     */
+    ByteUploadTask newUpload(PhotosGateway gateway, AlbumEntry entry) {
+        if (readAheadPool != null) {
+            readAheadPool.scheduled(entry.mediaPath());
+        }
+        return new ByteUploadTask(gateway, entry, resumableUploadJournal, bandwidthLimiter, chunkSize, readAheadPool);
+    }
+
+    /**
+     * Blocks until the upload of an entry fits in the budget of bytes in flight.
+     *
+     * @param entry Entry about to be uploaded.
+     * @return What to {@link #release} once the upload ended.
+     * @throws InterruptedException If interrupted while waiting, nothing is then admitted.
+     */
+    int admit(AlbumEntry entry) throws InterruptedException {
+        if (byteBudget == null) {
+            return 0;
+        }
+        return byteBudget.acquire(ByteUploadTask.chunkSizeFor(entry.mediaPath().length(), chunkSize));
+    }
+
+    /**
+     * Releases what an upload held, once it ended or was skipped.
+     *
+     * @param entry Entry uploaded.
+     * @param admitted Value returned by {@link #admit}, zero if it was not admitted.
+     */
+    void release(AlbumEntry entry, int admitted) {
+        if (admitted > 0) {
+            byteBudget.release(admitted);
+        }
+        if (readAheadPool != null) {
+            // Frees what was prefetched for an upload that was skipped or could not open the file.
+            readAheadPool.discard(entry.mediaPath());
+        }
+    }
+
+    /** Logs how the read-ahead pool and the budget fared. */
+    void logState() {
+        if (readAheadPool != null) {
+            LOG.info("Read-ahead: {}", readAheadPool);
+        }
+        if (byteBudget != null) {
+            LOG.info("In-flight byte budget: {}", byteBudget);
+        }
+    }
+
+    private void registerBandwidthLimiter() {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(bandwidthLimiter, new ObjectName(UploadService.BANDWIDTH_LIMITER_MBEAN_NAME));
+        } catch (JMException e) {
+            LOG.warn("Unable to register bandwidth limiter with JMX: {}", e.getMessage());
+        }
+    }
+
+    private void registerReadAheadPool() {
+        if (readAheadPool == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(readAheadPool, new ObjectName(UploadService.READ_AHEAD_POOL_MBEAN_NAME));
+        } catch (JMException e) {
+            LOG.warn("Unable to register read-ahead pool with JMX: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .unregisterMBean(new ObjectName(UploadService.BANDWIDTH_LIMITER_MBEAN_NAME));
+        } catch (JMException e) {
+            LOG.debug("Bandwidth limiter was not registered with JMX: {}", e.getMessage());
+        }
+        if (readAheadPool != null) {
+            readAheadPool.close();
+            try {
+                ManagementFactory.getPlatformMBeanServer()
+                        .unregisterMBean(new ObjectName(UploadService.READ_AHEAD_POOL_MBEAN_NAME));
+            } catch (JMException e) {
+                LOG.debug("Read-ahead pool was not registered with JMX: {}", e.getMessage());
+            }
+        }
+    }
+}
@@ -1,28 +1,45 @@
 package cc.photos.uploader;
 
+import cc.photos.uploader.gateway.PhotosGateway;
 import cc.photos.uploader.model.AlbumEntry;
+import cc.photos.uploader.state.MediaItemCatalog;
+import cc.photos.uploader.state.PendingWork;
+import cc.photos.uploader.state.WorkLedger;
 import cc.photos.uploader.tasks.ByteUploadTask;
 import cc.photos.uploader.tasks.ItemCreationTask;
+import cc.photos.uploader.util.Constants;
+import cc.photos.uploader.util.ProgressLog;
 import com.google.photos.library.v1.PhotosLibraryClient;
+import com.google.photos.types.proto.Album;
 import com.google.photos.types.proto.MediaItem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-
-import static java.lang.String.format;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 public class UploadService implements AutoCloseable {
     private static final Logger LOG = LoggerFactory.getLogger(UploadService.class);
@@ -40,9 +57,17 @@ public class UploadService implements AutoCloseable {
     @SuppressWarnings("JavadocLinkAsPlainText")
     public static final int NUM_BATCH_SIZE_DEFAULT = 50;
 
-    private final PhotosLibraryClient client;
-    @SuppressWarnings("FieldCanBeLocal")
-    private final int numByteUploadThreads;
+    /**
+     * Name under which the {@link BandwidthLimiter} is registered with JMX, so that the cap can be
+     * changed with e.g. JConsole while a run is in progress.
+     */
+    public static final String BANDWIDTH_LIMITER_MBEAN_NAME = "cc.photos.uploader:type=BandwidthLimiter";
+
+    /** Name under which the {@link ReadAheadPool} is registered with JMX, to watch its hit ratio. */
+    public static final String READ_AHEAD_POOL_MBEAN_NAME = "cc.photos.uploader:type=ReadAheadPool";
+
+    private final PhotosGateway gateway;
+    private final UploadResources resources;
     private final int numCreationBatchSize;
     private final ArrayList<ByteUploadTask.ByteUploadResult> creationQueue;
     private final ExecutorService uploadExecutor;
@@ -50,57 +75,310 @@ public class UploadService implements AutoCloseable {
     private final HashMap<String, ByteUploadTask.ByteUploadResult> successfulUploads;
     private final HashMap<AlbumEntry, ByteUploadTask.ByteUploadResult> failedUploads;
     private final Map<String, ItemCreationTask.ItemCreationResult> itemCreationResults;
+    private final ProgressLog progressLog;
+    private final WorkLedger workLedger;
+    private final ConcurrentLinkedQueue<AlbumEntry> heldByOtherNodes;
+    private final PendingWork pendingWork;
+    private final ConcurrentLinkedQueue<AlbumEntry> notStarted;
+    /** Entries submitted to the upload threads that are neither in flight nor skipped yet. */
+    private final Set<AlbumEntry> scheduled;
+    private final Set<AlbumEntry> inFlight;
+    private final AlbumLinkService albumLinkService;
+    private final CountDownLatch finished;
+
+    /** Set when a drain starts, uploads that have not started yet are then skipped. */
+    private volatile boolean draining;
+
+    /** Set once a drain has flushed the creation queue, results arriving later are left for the next run. */
+    private boolean drained;
 
-    private int totalNumOfExpectedUploads;
+    /** Set once {@link #addEntriesToAlbums} started, a drain before that has no uploads to wait for. */
+    private boolean started;
+
+    /** Leftovers of an earlier run taken by {@link #resumeLeftovers} and not yet submitted for upload. */
+    private final List<AlbumEntry> unsubmitted = new ArrayList<>();
 
     public UploadService(PhotosLibraryClient client) {
-        this.client = client;
-        this.numByteUploadThreads = NUM_BYTE_UPLOAD_THREAD_DEFAULT;
+        this(client, null);
+    }
+
+    /**
+     * @param client API client.
+     * @param workLedger Ledger shared with other nodes uploading the same list, may be null when
+     *                   running alone.
+     */
+    public UploadService(PhotosLibraryClient client, WorkLedger workLedger) {
+        this(PhotosGateway.of(client), workLedger);
+    }
+
+    /**
+     * @param gateway API to call, e.g. a {@link cc.photos.uploader.trace.ReplayGateway} to replay a trace.
+     * @param workLedger Ledger shared with other nodes uploading the same list, may be null when
+     *                   running alone.
+     */
+    public UploadService(PhotosGateway gateway, WorkLedger workLedger) {
+        this(gateway, workLedger, StatePaths.fromEnvironment());
+    }
+
+    /**
+     * @param gateway API to call, e.g. a {@link cc.photos.uploader.trace.ReplayGateway} to replay a trace.
+     * @param workLedger Ledger shared with other nodes uploading the same list, may be null when
+     *                   running alone.
+     * @param statePaths Where the state kept between runs is read and written.
+     */
+    public UploadService(PhotosGateway gateway, WorkLedger workLedger, StatePaths statePaths) {
+        this.gateway = gateway;
+        this.workLedger = workLedger;
+        this.heldByOtherNodes = new ConcurrentLinkedQueue<>();
+        this.resources = new UploadResources(statePaths);
         this.numCreationBatchSize = NUM_BATCH_SIZE_DEFAULT;
         this.creationQueue = new ArrayList<>(numCreationBatchSize);
-        this.uploadExecutor = Executors.newFixedThreadPool(this.numByteUploadThreads);
+        this.uploadExecutor = Executors.newFixedThreadPool(resources.numByteUploadThreads());
         this.uploadService = new ExecutorCompletionService<>(uploadExecutor);
         this.successfulUploads = new HashMap<>();
         this.failedUploads = new HashMap<>();
         this.itemCreationResults = new HashMap<>();
-        this.totalNumOfExpectedUploads = 0;
+        this.progressLog = new ProgressLog();
+        this.pendingWork = new PendingWork(new File(statePaths.stateDir(), "pending.tsv"));
+        this.notStarted = new ConcurrentLinkedQueue<>();
+        this.scheduled = ConcurrentHashMap.newKeySet();
+        this.inFlight = ConcurrentHashMap.newKeySet();
+        this.finished = new CountDownLatch(1);
+        this.albumLinkService = new AlbumLinkService(gateway,
+                new MediaItemCatalog(statePaths.mediaCatalog()), progressLog, workLedger);
     }
 
     public void addEntriesToAlbums(List<AlbumEntry> albumEntries) throws InterruptedException, ExecutionException {
-        albumEntries.forEach(albumWithEntry -> {
-            this.totalNumOfExpectedUploads += 1;
-            scheduleUploadFileBytes(albumWithEntry);
-        });
+        synchronized (this) {
+            if (drained) {
+                // Drained before anything was submitted, the leftovers were saved for the next run.
+                finished.countDown();
+                return;
+            }
+            started = true;
+            unsubmitted.clear();
+        }
+        try {
+            List<AlbumEntry> pending = albumEntries;
+            // Run at least one round, so that links queued by linkExisting are made even if there is nothing
+            // to upload.
+            do {
+                // Files already uploaded, or listed under several albums, are only uploaded once and then
+                // linked to their other albums.
+                uploadAndCreate(albumLinkService.planUploads(pending));
+                synchronized (this) {
+                    if (!drained) {
+                        albumLinkService.flush();
+                    }
+                }
+
+                // Entries leased by other nodes are checked again until they are done, or until their lease
+                // expires because the other node died and this node can take them over.
+                pending = new ArrayList<>(heldByOtherNodes);
+                heldByOtherNodes.clear();
+                if (!pending.isEmpty() && !draining) {
+                    LOG.info("{} entries are being uploaded by other nodes, checking again in {}s.",
+                            pending.size(), Constants.UPLOADER_LEASE_SECONDS / 3);
+                    TimeUnit.SECONDS.sleep(Math.max(1, Constants.UPLOADER_LEASE_SECONDS / 3));
+                }
+                // Entries that could not be linked are uploaded in the next round.
+                pending.addAll(albumLinkService.takeUnlinked());
+            } while (!pending.isEmpty() && !draining);
+            // Entries held by other nodes when a drain started are saved with the rest for the next run.
+            notStarted.addAll(pending);
+            progressLog.logSummary();
+            LOG.info("All uploads have been processed.");
+        } finally {
+            finished.countDown();
+        }
+    }
+
+    /**
+     * Adds entries to their album as media items already in the library, instead of uploading them.
+     * The links are made with the first round of {@link #addEntriesToAlbums}.
+     *
+     * @param mediaItemIds Media item to add, by entry.
+     */
+    public void linkExisting(Map<AlbumEntry, String> mediaItemIds) {
+        mediaItemIds.forEach(albumLinkService::link);
+    }
+
+    /**
+     * Creates the upload tokens left over by a run that was drained, and returns its entries that still
+     * have to be uploaded. Tokens that have expired in the meantime are returned as entries too.
+     *
+     * @param albumForTitle Looks up the album of a leftover entry by its title.
+     * @return Entries to upload again.
+     */
+    public List<AlbumEntry> resumeLeftovers(Function<String, Album> albumForTitle) throws IOException {
+        List<AlbumEntry> entries;
+        // A drain during this or before the entries are submitted saves them again, see drain().
+        synchronized (this) {
+            PendingWork.Leftovers leftovers = pendingWork.take();
+            for (Map.Entry<String, AlbumEntry> token : leftovers.uploadTokens().entrySet()) {
+                AlbumEntry entry = withAlbum(token.getValue(), albumForTitle);
+                ByteUploadTask.ByteUploadResult uploadResult =
+                        ByteUploadTask.ByteUploadResult.createSuccessResult(entry, token.getKey());
+                successfulUploads.put(uploadResult.uploadToken, uploadResult);
+                creationQueue.add(uploadResult);
+                if (creationQueue.size() >= numCreationBatchSize) {
+                    createMediaItems();
+                }
+            }
+            if (!creationQueue.isEmpty()) {
+                createMediaItems();
+            }
+            entries = new ArrayList<>(leftovers.entries().size());
+            for (AlbumEntry entry : leftovers.entries()) {
+                entries.add(withAlbum(entry, albumForTitle));
+            }
+            unsubmitted.addAll(entries);
+        }
+        return entries;
+    }
+
+    private static AlbumEntry withAlbum(AlbumEntry entry, Function<String, Album> albumForTitle) {
+        return new AlbumEntry(albumForTitle.apply(entry.album().getTitle()), entry.mediaPath(), entry.description());
+    }
+
+    /**
+     * Stops the run gracefully, typically from a shutdown hook. Uploads that have not started are not
+     * started anymore, uploads in flight are given until the deadline to finish, and every upload token
+     * received so far is created through batchCreate. Whatever is left, the tokens whose creation failed
+     * and the paths that were not uploaded, is saved for the next run, see {@link #resumeLeftovers}.
+     *
+     * <p>A drain before {@link #addEntriesToAlbums} started, e.g. while the photo list is parsed, saves the
+     * leftovers of the earlier run again and returns at once.
+     *
+     * @param deadline How long to wait for uploads in flight.
+     */
+    public void drain(Duration deadline) {
+        draining = true;
+        synchronized (this) {
+            if (!started) {
+                LOG.info("Draining before any upload started.");
+                drained = true;
+                notStarted.addAll(unsubmitted);
+                unsubmitted.clear();
+                saveLeftovers();
+                return;
+            }
+        }
+        LOG.info("Draining, waiting up to {}s for {} uploads in flight.", deadline.toSeconds(), inFlight.size());
+        try {
+            if (!finished.await(deadline.toMillis(), TimeUnit.MILLISECONDS)) {
+                LOG.warn("{} uploads still in flight after {}s.", inFlight.size(), deadline.toSeconds());
+                List<Runnable> neverStarted = uploadExecutor.shutdownNow();
+                LOG.info("{} uploads were still queued.", neverStarted.size());
+                synchronized (this) {
+                    // Pick up the uploads that completed but were not yet handled by the main thread.
+                    Future<ByteUploadTask.ByteUploadResult> futureResult;
+                    while ((futureResult = uploadService.poll()) != null) {
+                        try {
+                            handleUploadResult(futureResult.get());
+                        } catch (ExecutionException e) {
+                            LOG.warn("Upload failed while draining: {}", e.getMessage());
+                        }
+                    }
+                    createMediaItems();
+                    albumLinkService.flush();
+                    drained = true;
+                    // The uploads interrupted above and those the upload threads never took.
+                    notStarted.addAll(inFlight);
+                    notStarted.addAll(scheduled);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        saveLeftovers();
+    }
+
+    private synchronized void saveLeftovers() {
+        Map<String, AlbumEntry> uploadTokens = new LinkedHashMap<>();
+        for (ByteUploadTask.ByteUploadResult uploadResult : creationQueue) {
+            uploadTokens.put(uploadResult.uploadToken, uploadResult.entryBeingUploaded);
+        }
+        // Creations that failed as a whole, e.g. because of a network error, can be retried with the same token.
+        for (ItemCreationTask.ItemCreationResult result : itemCreationResults.values()) {
+            if (!result.isOk() && result.status.isEmpty()) {
+                uploadTokens.put(result.uploadToken, successfulUploads.get(result.uploadToken).entryBeingUploaded);
+            }
+        }
+        // An entry skipped by its upload thread while the drain collected the scheduled ones is listed twice.
+        List<AlbumEntry> entries = new ArrayList<>(new LinkedHashSet<>(notStarted));
+        entries.addAll(albumLinkService.takeUnfinished());
+        if (uploadTokens.isEmpty() && entries.isEmpty()) {
+            return;
+        }
+        try {
+            pendingWork.save(uploadTokens, entries);
+        } catch (IOException e) {
+            LOG.error("Unable to save {} upload tokens and {} paths for the next run.",
+                    uploadTokens.size(), entries.size(), e);
+        }
+    }
+
+    private void uploadAndCreate(List<AlbumEntry> albumEntries) throws InterruptedException, ExecutionException {
+        albumEntries.forEach(this::scheduleUploadFileBytes);
         LOG.info("All byte uploads tasks have been scheduled.");
 
-        for (int finishedResults = 0; finishedResults < this.totalNumOfExpectedUploads; finishedResults++) {
+        final int totalNumOfExpectedUploads = albumEntries.size();
+        for (int finishedResults = 0; finishedResults < totalNumOfExpectedUploads; finishedResults++) {
             // Wait until a task is completed and get its result.
             Future<ByteUploadTask.ByteUploadResult> futureResult = uploadService.take();
             ByteUploadTask.ByteUploadResult uploadResult = futureResult.get();
 
-            if (uploadResult.isOk()) {
-                // The bytes were successfully uploaded and an upload token is available.
-                successfulUploads.put(uploadResult.uploadToken, uploadResult);
+            synchronized (this) {
+                if (drained) {
+                    // A drain has already flushed the creation queue and saved what was left.
+                    return;
+                }
+                handleUploadResult(uploadResult);
 
-                // Add it to the queue for the next call to create media items.
-                creationQueue.add(uploadResult);
+                // If enough tasks have completed so that a batch is full (or this was the final upload),
+                // submit the upload tokens to create media items.
+                if (creationQueue.size() >= numCreationBatchSize
+                        || finishedResults + 1 >= totalNumOfExpectedUploads) {
 
-            } else {
-                // The byte upload failed, collect its result and deal with the error later.
-                failedUploads.put(uploadResult.entryBeingUploaded, uploadResult);
+                    LOG.debug("Starting batch creation call.");
+
+                    createMediaItems();
+                }
             }
+            progressLog.logSummaryIfDue();
+        }
+    }
 
-            // If enough tasks have completed so that a batch is full (or this was the final upload),
-            // submit the upload tokens to create media items.
-            if (creationQueue.size() >= numCreationBatchSize
-                    || successfulUploads.size() + failedUploads.size() >= this.totalNumOfExpectedUploads) {
+    private void handleUploadResult(ByteUploadTask.ByteUploadResult uploadResult) {
+        inFlight.remove(uploadResult.entryBeingUploaded);
+        if (uploadResult.skipped) {
+            // Another node owns this entry or already uploaded it, or a drain started. The entries waiting for
+            // its content stay parked: they are linked by whichever node creates it, or saved by the drain.
+            ProgressLog.EVENTS.debug("skipped {}", uploadResult.entryBeingUploaded.mediaPath());
+        } else if (uploadResult.isOk()) {
+            // The bytes were successfully uploaded and an upload token is available.
+            successfulUploads.put(uploadResult.uploadToken, uploadResult);
 
-                LOG.info("Starting batch creation call.");
+            // Add it to the queue for the next call to create media items.
+            creationQueue.add(uploadResult);
 
-                createMediaItems();
+            progressLog.uploaded();
+            ProgressLog.EVENTS.debug("uploaded {}", uploadResult.entryBeingUploaded.mediaPath());
+        } else {
+            // The byte upload failed, collect its result and deal with the error later.
+            failedUploads.put(uploadResult.entryBeingUploaded, uploadResult);
+            if (draining) {
+                // Most likely interrupted by a drain past its deadline, the next run uploads it again.
+                notStarted.add(uploadResult.entryBeingUploaded);
             }
+            abandonClaim(uploadResult.entryBeingUploaded);
+            albumLinkService.notCreated(uploadResult.entryBeingUploaded);
+
+            progressLog.uploadFailed();
+            ProgressLog.EVENTS.debug("upload failed {}: {}", uploadResult.entryBeingUploaded.mediaPath(),
+                    uploadResult.error);
         }
-        LOG.info("All uploads have been processed.");
     }
 
     /**
@@ -122,10 +400,26 @@ public class UploadService implements AutoCloseable {
         // Execution of this task is not scheduled in a separate thread, instead it is done here on the main
         // thread blocking further execution until it completes.
         Map<String, ItemCreationTask.ItemCreationResult> creationResult =
-                new ItemCreationTask(client, itemsToCreate).call();
+                new ItemCreationTask(gateway, itemsToCreate).call();
 
         // Store all results for later processing.
         itemCreationResults.putAll(creationResult);
+
+        int created = 0;
+        for (ItemCreationTask.ItemCreationResult result : creationResult.values()) {
+            AlbumEntry entry = successfulUploads.get(result.uploadToken).entryBeingUploaded;
+            if (result.isOk()) {
+                created++;
+                completeClaim(entry);
+                //noinspection OptionalGetWithoutIsPresent
+                albumLinkService.created(entry, result.mediaItem.get());
+            } else {
+                abandonClaim(entry);
+                albumLinkService.notCreated(entry);
+            }
+        }
+        progressLog.created(created);
+        progressLog.creationFailed(creationResult.size() - created);
     }
 
     /**
@@ -140,10 +434,97 @@ public class UploadService implements AutoCloseable {
         // Note that the ExecutorService handles execution of threads, here they are queued up for processing.
         // These tasks are executed in parallel, based on the thread pool configured above.
         // The Library API supports parallel byte uploads for the same user.
-        LOG.info("-> Scheduling byte upload for: " + albumWithEntry);
+        ProgressLog.EVENTS.debug("scheduled {} album={}", albumWithEntry.mediaPath(), albumWithEntry.album().getTitle());
+        progressLog.scheduled();
         // Initialise a new upload tasks and schedule it for execution.
-        ByteUploadTask task = new ByteUploadTask(client, albumWithEntry);
-        uploadService.submit(task);
+        // Workers start uploads in the order they are submitted, which is the order they are created in.
+        ByteUploadTask task = resources.newUpload(gateway, albumWithEntry);
+        scheduled.add(albumWithEntry);
+        uploadService.submit(unlessDraining(albumWithEntry, workLedger != null ? claimThenUpload(task) : task));
+    }
+
+    /**
+     * Wraps an upload so that it is skipped if a drain started before it, and remembered as in flight
+     * otherwise. The entry stays {@link #scheduled} until then, so that a drain saves it even if the
+     * upload is never run.
+     */
+    private Callable<ByteUploadTask.ByteUploadResult> unlessDraining(
+            AlbumEntry entry, Callable<ByteUploadTask.ByteUploadResult> upload) {
+        return () -> {
+            int admitted = 0;
+            try {
+                if (!draining) {
+                    try {
+                        admitted = resources.admit(entry);
+                    } catch (InterruptedException e) {
+                        // Interrupted by a drain past its deadline.
+                        notStarted.add(entry);
+                        scheduled.remove(entry);
+                        return ByteUploadTask.ByteUploadResult.createSkippedResult(entry);
+                    }
+                }
+                if (draining) {
+                    notStarted.add(entry);
+                    scheduled.remove(entry);
+                    return ByteUploadTask.ByteUploadResult.createSkippedResult(entry);
+                }
+                inFlight.add(entry);
+                scheduled.remove(entry);
+                return upload.call();
+            } finally {
+                resources.release(entry, admitted);
+            }
+        };
+    }
+
+    /**
+     * Wraps an upload so that it only runs if this node can claim its entry in the {@link WorkLedger}.
+     * The claim is made by the upload worker, right before the upload, so that a node only holds leases
+     * for entries it is actively working on.
+     */
+    private Callable<ByteUploadTask.ByteUploadResult> claimThenUpload(ByteUploadTask task) {
+        return () -> {
+            AlbumEntry entry = task.getEntryToUpload();
+            WorkLedger.Claim claim;
+            try {
+                claim = workLedger.claim(entry);
+            } catch (IOException e) {
+                return ByteUploadTask.ByteUploadResult.createFailureResultWithThrowable(entry, e);
+            }
+            return switch (claim) {
+                case CLAIMED -> task.call();
+                case DONE -> {
+                    albumLinkService.doneElsewhere(entry);
+                    yield ByteUploadTask.ByteUploadResult.createSkippedResult(entry);
+                }
+                case HELD -> {
+                    heldByOtherNodes.add(entry);
+                    yield ByteUploadTask.ByteUploadResult.createSkippedResult(entry);
+                }
+            };
+        };
+    }
+
+    private void completeClaim(AlbumEntry entry) {
+        if (workLedger == null) {
+            return;
+        }
+        try {
+            workLedger.complete(entry);
+        } catch (IOException e) {
+            LOG.warn("Unable to record {} as done in the work ledger: {}", entry.mediaPath(), e.getMessage());
+        }
+    }
+
+    private void abandonClaim(AlbumEntry entry) {
+        if (workLedger == null) {
+            return;
+        }
+        try {
+            workLedger.abandon(entry);
+        } catch (IOException e) {
+            LOG.warn("Unable to release {} in the work ledger: {}", entry.mediaPath(), e.getMessage());
+        }
     }
 
     /**
@@ -152,7 +533,7 @@ public class UploadService implements AutoCloseable {
      */
     public void printState() {
         // Print the failed byte uploads
-        LOG.info("The following " + failedUploads.size() + " files could not be uploaded:");
+        LOG.info("The following {} files could not be uploaded:", failedUploads.size());
         for (ByteUploadTask.ByteUploadResult uploadResult : failedUploads.values()) {
             // Print the error that lead to this failure.
             // If it was an ApiException there may be some additional details that could be examined
@@ -161,7 +542,9 @@ public class UploadService implements AutoCloseable {
         }
 
         // Print the successful media item creations and extract ones that failed.
-        LOG.info("The following items were successfully created:");
+        resources.logState();
+        LOG.info("{} items were successfully created.", itemCreationResults.values().stream()
+                .filter(ItemCreationTask.ItemCreationResult::isOk).count());
         // Check the status of each item creation, keep track of all failed creations for retry.
         List<ItemCreationTask.ItemCreationResult> failedCreations = new LinkedList<>();
         for (Map.Entry<String, ItemCreationTask.ItemCreationResult> entry :
@@ -170,17 +553,25 @@ public class UploadService implements AutoCloseable {
             if (value.isOk()) {
                 // The item was successfully created. Print out its details.
                 //noinspection OptionalGetWithoutIsPresent
-                MediaItem item = value.mediaItem.get();
-                printOk(entry.getKey(), item.getProductUrl());
+                if (LOG.isDebugEnabled()) {
+                    MediaItem item = value.mediaItem.get();
+                    printOk(entry.getKey(), item.getProductUrl());
+                }
             } else {
                 // The item could not be created. Keep track of it.
                 failedCreations.add(value);
             }
         }
 
+        LOG.info("{} entries were added to their album as existing media items.", albumLinkService.getLinkedCount());
+        if (albumLinkService.getFailedLinkCount() > 0) {
+            LOG.info("{} entries could not be added to their album as existing media items.",
+                    albumLinkService.getFailedLinkCount());
+        }
+
         // Print the failed media item creations. If possible, print some additional details if the API
         // returned an error.
-        LOG.info("The following " + failedCreations.size() + " files could not be created:");
+        LOG.info("The following {} files could not be created:", failedCreations.size());
         for (ItemCreationTask.ItemCreationResult result : failedCreations) {
             // The file was successfully uploaded in the first step. Look up its File definition by the
             // upload token
@@ -200,13 +591,14 @@ public class UploadService implements AutoCloseable {
     }
 
     /**
-     * Print a success message prefixed by the file name.
+     * Print a success message prefixed by the file name. Successes are only printed at DEBUG level, as
+     * there is one for every item of the run.
      *
      * @param fileName Name of this file is used as a prefix for the message.
      * @param message Message to print out.
      */
     private static void printOk(String fileName, String message) {
-        print("OK", fileName, message);
+        LOG.debug("\t{}: {}: {}", "OK", fileName, message);
     }
 
     /**
@@ -227,7 +619,7 @@ public class UploadService implements AutoCloseable {
      * @param message Message to print out.
      */
     private static void print(String status, String prefix, String message) {
-        LOG.info(format("\t%s: %s: %s", status, prefix, message));
+        LOG.info("\t{}: {}: {}", status, prefix, message);
     }
 
     @SuppressWarnings("RedundantThrows")
@@ -236,5 +628,27 @@ public class UploadService implements AutoCloseable {
         if (uploadExecutor != null) {
             uploadExecutor.shutdown();
         }
+        resources.close();
+    }
+
+    /**
+     * Where the state kept between runs is read and written.
+     *
+     * @param stateDir Directory of the work left by a drained run and of the resumable upload sessions.
+     * @param mediaCatalog Catalog of the media items created, see {@link MediaItemCatalog}.
+     * @param tuningProfile Settings measured by the probe mode, see {@link TuningProfile}.
+     */
+    public record StatePaths(File stateDir, File mediaCatalog, Path tuningProfile) {
+        /** The locations configured by the environment, those of real runs. */
+        public static StatePaths fromEnvironment() {
+            return new StatePaths(new File(Constants.UPLOADER_STATE_DIR), new File(Constants.UPLOADER_MEDIA_CATALOG),
+                    Paths.get(Constants.UPLOADER_TUNING_PROFILE));
+        }
+
+        /** The default locations under another state directory. */
+        public static StatePaths under(Path stateDir) {
+            return new StatePaths(stateDir.toFile(), stateDir.resolve("media-items.tsv").toFile(),
+                    stateDir.resolve("tuning.properties"));
+        }
     }
 }
@@ -2,8 +2,14 @@ package cc.photos.uploader;
 
 import cc.photos.uploader.factory.PhotosLibraryClientFactory;
 import cc.photos.uploader.model.AlbumEntry;
+import cc.photos.uploader.state.TuningProfile;
+import cc.photos.uploader.state.WorkLedger;
+import cc.photos.uploader.trace.TraceRecorder;
+import cc.photos.uploader.trace.TraceReplayer;
 import cc.photos.uploader.util.Constants;
+import cc.photos.uploader.util.PhotoListReader;
 import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
 import com.google.common.base.Stopwatch;
 import com.google.photos.library.v1.PhotosLibraryClient;
 import com.google.photos.types.proto.Album;
@@ -16,16 +22,16 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Stream;
+import java.util.function.Function;
 
 import static java.lang.Boolean.parseBoolean;
-import static java.util.stream.Collectors.toList;
 
 public class UploaderApp {
     private static final Logger LOG = LoggerFactory.getLogger(UploaderApp.class);
@@ -42,21 +48,69 @@ public class UploaderApp {
     private static final String USAGE = "/usage.txt";
     private static final String VERSION = "/version.txt";
 
+    /** Shutdown hook draining the run, while registered. It then stops logging instead of main. */
+    private static volatile Thread drainHook;
+
     public static void main(String[] args) {
         handleArgsIfNeeded(args);
+        try {
+            run(args);
+        } finally {
+            if (drainHook == null) {
+                stopLogging();
+            }
+        }
+    }
 
+    private static void run(String[] args) {
         Stopwatch timer = Stopwatch.createStarted();
         Map<String, String> opts = parseOpts();
+        if (isProbe(args)) {
+            probe(opts);
+            timer.stop();
+            LOG.info("Probe Finished in {}", timer);
+            return;
+        }
+        if (isReplay(args)) {
+            replay(args);
+            timer.stop();
+            LOG.info("Replay Finished in {}", timer);
+            return;
+        }
         LOG.info("GPhoto Uploader Started to upload [{}]", opts.get(Constants.ENV_UPLOADER_PHOTO_LIST));
 
         String credentialsPath = opts.get(Constants.ENV_UPLOADER_CREDENTIALS);
-        try (PhotosLibraryClient client = PhotosLibraryClientFactory.createClient(credentialsPath, REQUIRED_SCOPES)) {
-            AlbumService albumService = new AlbumService(client);
+        try (PhotosLibraryClient client = PhotosLibraryClientFactory.createClient(credentialsPath, REQUIRED_SCOPES);
+             WorkLedger workLedger = createWorkLedger();
+             TraceRecorder trace = startTrace()) {
+            AlbumService albumService = new AlbumService(client, workLedger);
             albumService.initializeAlbumCache();
-            try (UploadService uploadService = new UploadService(client)) {
+            try (UploadService uploadService = new UploadService(client, workLedger)) {
+                // On SIGTERM or SIGINT, finish what is in flight and save the rest for the next run. Registered
+                // before the leftovers of the last run are taken, so that a drain while the photo list is read
+                // saves them again.
+                drainHook = new Thread(() -> {
+                    uploadService.drain(Duration.ofSeconds(Constants.UPLOADER_DRAIN_SECONDS));
+                    closeTrace(trace);
+                    stopLogging();
+                }, "drain");
+                Runtime.getRuntime().addShutdownHook(drainHook);
                 File filePaths = new File(opts.get(Constants.ENV_UPLOADER_PHOTO_LIST));
-                List<AlbumEntry> albumEntries = parseAlbumsToUpload(albumService, filePaths);
+                List<AlbumEntry> albumEntries = withLeftovers(
+                        uploadService.resumeLeftovers(albumService::createAlbumIfAbsent),
+                        parseAlbumsToUpload(albumService::createAlbumIfAbsent, filePaths));
+                albumEntries = new NearDuplicateFilter(NearDuplicateFilter.Mode.parse(Constants.UPLOADER_NEAR_DUPLICATES),
+                        Constants.UPLOADER_NEAR_DUPLICATE_DISTANCE).filter(albumEntries);
+                if (Constants.UPLOADER_RECONCILE) {
+                    ReconciliationService.Reconciliation reconciliation = new ReconciliationService(client,
+                            Paths.get(Constants.UPLOADER_STATE_DIR, "library-index.bin"),
+                            Duration.ofHours(Constants.UPLOADER_LIBRARY_INDEX_TTL_HOURS)).reconcile(albumEntries);
+                    uploadService.linkExisting(reconciliation.toLink());
+                    albumEntries = reconciliation.toUpload();
+                }
+
                 uploadService.addEntriesToAlbums(albumEntries);
+                removeShutdownHook(drainHook);
                 uploadService.printState();
             }
         } catch (Exception e) {
@@ -67,18 +121,135 @@ public class UploaderApp {
     }
 
     /*
-    Given a file with a list of filepaths of this format: "/yearName/albumName/filename.jpg" parse the albumName from
-    the filepath, and initialize an instance of `AlbumEntry` returning the result as a Stream of `AlbumEntry`.
+    Calibrates the chunk size and concurrency on a sample of the photo list and saves them as the tuning profile
+    that later runs load, see `ProbeService`.
+     */
+    private static void probe(Map<String, String> opts) {
+        LOG.info("GPhoto Uploader Started to probe with [{}]", opts.get(Constants.ENV_UPLOADER_PHOTO_LIST));
+        String credentialsPath = opts.get(Constants.ENV_UPLOADER_CREDENTIALS);
+        try (PhotosLibraryClient client = PhotosLibraryClientFactory.createClient(credentialsPath, REQUIRED_SCOPES)) {
+            // Probe uploads are never added to albums, so do not create any.
+            File filePaths = new File(opts.get(Constants.ENV_UPLOADER_PHOTO_LIST));
+            List<AlbumEntry> albumEntries = parseAlbumsToUpload(
+                    albumName -> Album.newBuilder().setTitle(albumName).build(), filePaths);
+            ProbeService probeService = new ProbeService(client, Constants.UPLOADER_PROBE_SAMPLE_SIZE,
+                    Constants.UPLOADER_PROBE_TRIAL_BYTES, Duration.ofSeconds(Constants.UPLOADER_PROBE_TRIAL_SECONDS));
+            TuningProfile profile = probeService.probe(albumEntries);
+            profile.save(Paths.get(Constants.UPLOADER_TUNING_PROFILE));
+            LOG.info("Saved tuning profile to {}: chunkSize={} concurrency={} ({} KB/s)",
+                    Constants.UPLOADER_TUNING_PROFILE, profile.chunkSize(), profile.concurrency(),
+                    profile.bytesPerSecond() / 1024);
+        } catch (Exception e) {
+            LOG.error("Error probing upload settings", e);
+        }
+    }
+
+    /*
+    Replays a trace recorded with `UPLOADER_TRACE` against an in-memory stand-in of the API, see `TraceReplayer`.
+     */
+    private static void replay(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: gphoto-uploader --replay <trace> [<speed>]");
+            return;
+        }
+        try {
+            double speed = args.length > 2 ? Double.parseDouble(args[2]) : 1;
+            new TraceReplayer(Paths.get(args[1]), speed).replay();
+        } catch (Exception e) {
+            LOG.error("Error replaying trace", e);
+        }
+    }
+
+    private static void removeShutdownHook(Thread hook) {
+        try {
+            Runtime.getRuntime().removeShutdownHook(hook);
+            drainHook = null;
+        } catch (IllegalStateException e) {
+            // The JVM is already shutting down and the hook is running.
+        }
+    }
+
+    /*
+    Stops logback, which flushes the async appender. Logback's own shutdown hook would run alongside the drain hook and
+    drop the messages of the drain, so this is called last by whichever of main and the drain hook ends the run.
+     */
+    /*
+    The run does not return from a drain, so the hook ends the trace for the try that would have.
+     */
+    private static void closeTrace(TraceRecorder trace) {
+        if (trace == null) {
+            return;
+        }
+        try {
+            trace.close();
+        } catch (IOException e) {
+            LOG.warn("Unable to close the trace: {}", e.getMessage());
+        }
+    }
+
+    private static void stopLogging() {
+        if (LoggerFactory.getILoggerFactory() instanceof LoggerContext context) {
+            context.stop();
+        }
+    }
+
+    /*
+    Puts the entries left over by a drained run ahead of the photo list, without uploading twice the ones that are in
+    both.
      */
-    private static List<AlbumEntry> parseAlbumsToUpload(AlbumService albumService, File filePaths) throws IOException {
-        try (Stream<String> lines = Files.lines(filePaths.toPath())) {
-            return lines.map(line -> {
-                Path path = Paths.get(line);
-                String albumName = path.getName(path.getNameCount() - 2).toString();
-                Album album = albumService.createAlbumIfAbsent(albumName);
-                return new AlbumEntry(album, path.toFile());
-            }).collect(toList());
+    private static List<AlbumEntry> withLeftovers(List<AlbumEntry> leftovers, List<AlbumEntry> albumEntries) {
+        if (leftovers.isEmpty()) {
+            return albumEntries;
+        }
+        Map<String, AlbumEntry> entries = new LinkedHashMap<>();
+        for (AlbumEntry entry : leftovers) {
+            entries.putIfAbsent(entry.album().getTitle() + '\0' + entry.mediaPath().getPath(), entry);
         }
+        for (AlbumEntry entry : albumEntries) {
+            entries.putIfAbsent(entry.album().getTitle() + '\0' + entry.mediaPath().getPath(), entry);
+        }
+        return new ArrayList<>(entries.values());
+    }
+
+    private static boolean isProbe(String[] args) {
+        return args.length > 0 && ("-p".equals(args[0]) || "--probe".equals(args[0]));
+    }
+
+    private static boolean isReplay(String[] args) {
+        return args.length > 0 && "--replay".equals(args[0]);
+    }
+
+    /*
+    When a trace file is configured, records the API calls of the run to it, see `TraceRecorder`. Returns null
+    otherwise.
+     */
+    private static TraceRecorder startTrace() throws IOException {
+        if (Constants.UPLOADER_TRACE.isBlank()) {
+            return null;
+        }
+        return TraceRecorder.start(Paths.get(Constants.UPLOADER_TRACE));
+    }
+
+    /*
+    When a ledger directory is configured, this process shares the photo list with the other processes using the
+    same directory, see `WorkLedger`. Returns null when running alone.
+     */
+    private static WorkLedger createWorkLedger() throws IOException {
+        if (Constants.UPLOADER_LEDGER_DIR.isBlank()) {
+            return null;
+        }
+        return new WorkLedger(Paths.get(Constants.UPLOADER_LEDGER_DIR), Constants.UPLOADER_NODE_ID,
+                Duration.ofSeconds(Constants.UPLOADER_LEASE_SECONDS));
+    }
+
+    /*
+    Given a file with a list of filepaths of this format: "/yearName/albumName/filename.jpg", or of JSON objects with a
+    path and optionally an album and a description, initialize an instance of `AlbumEntry` for each line, see
+    `PhotoListReader`.
+     */
+    private static List<AlbumEntry> parseAlbumsToUpload(Function<String, Album> albumForName, File filePaths)
+            throws IOException {
+        return new PhotoListReader().read(filePaths, albumForName);
     }
 
     private static Map<String, String> parseOpts() {
@@ -0,0 +1,82 @@
+package cc.photos.uploader.gateway;
+
+import com.google.photos.library.v1.PhotosLibraryClient;
+import com.google.photos.library.v1.proto.BatchAddMediaItemsToAlbumResponse;
+import com.google.photos.library.v1.proto.BatchCreateMediaItemsResponse;
+import com.google.photos.library.v1.proto.NewMediaItem;
+import com.google.photos.library.v1.upload.UploadMediaItemRequest;
+import com.google.photos.library.v1.upload.UploadMediaItemResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The Library API calls made while uploading, so that the upload pipeline can run against something
+ * other than the API, e.g. a replayed trace.
+ *
+ * <p>The methods of {@link PhotosLibraryClient} are final and cannot be overridden, hence this
+ * interface. {@link #of(PhotosLibraryClient)} returns the implementation calling the API.
+ */
+public interface PhotosGateway {
+
+    /**
+     * Uploads the bytes of a file.
+     *
+     * @param file The file whose bytes are uploaded by the request.
+     * @param request Upload request reading the file.
+     * @see PhotosLibraryClient#uploadMediaItem(UploadMediaItemRequest)
+     */
+    UploadMediaItemResponse uploadMediaItem(File file, UploadMediaItemRequest request);
+
+    /**
+     * Starts a resumable upload session, whose URL is then set on the upload request.
+     *
+     * @param mimeType Media type of the file, may be null if unknown.
+     * @param size Size of the file in bytes.
+     * @return The session URL to upload the bytes to.
+     */
+    String startResumableUpload(String mimeType, long size) throws IOException, InterruptedException;
+
+    /**
+     * Creates media items from upload tokens in an album.
+     *
+     * @see PhotosLibraryClient#batchCreateMediaItems(String, List)
+     */
+    BatchCreateMediaItemsResponse batchCreateMediaItems(String albumId, List<NewMediaItem> newMediaItems);
+
+    /**
+     * Adds existing media items to an album.
+     *
+     * @see PhotosLibraryClient#batchAddMediaItemsToAlbum(String, List)
+     */
+    BatchAddMediaItemsToAlbumResponse batchAddMediaItemsToAlbum(String albumId, List<String> mediaItemIds);
+
+    /**
+     * @param client API client.
+     * @return A gateway calling the API through the client.
+     */
+    static PhotosGateway of(PhotosLibraryClient client) {
+        return new PhotosGateway() {
+            @Override
+            public UploadMediaItemResponse uploadMediaItem(File file, UploadMediaItemRequest request) {
+                return client.uploadMediaItem(request);
+            }
+
+            @Override
+            public String startResumableUpload(String mimeType, long size) throws IOException, InterruptedException {
+                return UploadSessionStarter.start(client, mimeType, size);
+            }
+
+            @Override
+            public BatchCreateMediaItemsResponse batchCreateMediaItems(String albumId, List<NewMediaItem> newMediaItems) {
+                return client.batchCreateMediaItems(albumId, newMediaItems);
+            }
+
+            @Override
+            public BatchAddMediaItemsToAlbumResponse batchAddMediaItemsToAlbum(String albumId, List<String> mediaItemIds) {
+                return client.batchAddMediaItemsToAlbum(albumId, mediaItemIds);
+            }
+        };
+    }
+}
@@ -0,0 +1,57 @@
+package cc.photos.uploader.gateway;
+
+import com.google.auth.Credentials;
+import com.google.photos.library.v1.PhotosLibraryClient;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+/**
+ * Starts a resumable upload session against the Library API upload endpoint.
+ *
+ * <p>The client library only starts a session internally and does not expose its URL until an upload
+ * fails, which is too late to survive a crash. Starting the session here lets the URL be saved before
+ * any bytes are sent; it is then handed to the client library through
+ * {@link com.google.photos.library.v1.upload.UploadMediaItemRequest.Builder#setUploadUrl(String)}.
+ *
+ * @see <a href="https://developers.google.com/photos/library/guides/resumable-uploads">Resumable uploads</a>
+ */
+final class UploadSessionStarter {
+    private static final URI UPLOAD_ENDPOINT = URI.create("https://photoslibrary.googleapis.com/v1/uploads");
+    private static final String DEFAULT_MIME_TYPE = "application/octet-stream";
+    private static final HttpClient HTTP_CLIENT = HttpClient.newHttpClient();
+
+    private UploadSessionStarter() {}
+
+    /**
+     * Starts a new session.
+     *
+     * @param client API client whose credentials authorize the request.
+     * @param mimeType Media type of the file, may be null if unknown.
+     * @param size Size of the file in bytes.
+     * @return The session URL to upload the bytes to.
+     */
+    static String start(PhotosLibraryClient client, String mimeType, long size) throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(UPLOAD_ENDPOINT)
+                .header("X-Goog-Upload-Protocol", "resumable")
+                .header("X-Goog-Upload-Command", "start")
+                .header("X-Goog-Upload-Content-Type", mimeType != null ? mimeType : DEFAULT_MIME_TYPE)
+                .header("X-Goog-Upload-Raw-Size", String.valueOf(size))
+                .POST(HttpRequest.BodyPublishers.noBody());
+
+        Credentials credentials = client.getSettings().getCredentialsProvider().getCredentials();
+        credentials.getRequestMetadata(UPLOAD_ENDPOINT)
+                .forEach((name, values) -> values.forEach(value -> request.header(name, value)));
+
+        HttpResponse<Void> response = HTTP_CLIENT.send(request.build(), HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() != 200) {
+            throw new IOException("Unable to start upload session, status: " + response.statusCode());
+        }
+        return response.headers()
+                .firstValue("X-Goog-Upload-URL")
+                .orElseThrow(() -> new IOException("No upload URL returned when starting upload session."));
+    }
+}
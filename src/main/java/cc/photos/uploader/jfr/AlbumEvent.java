@@ -0,0 +1,36 @@
+package cc.photos.uploader.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * An album call to the Library API: listing albums, creating one, or adding existing media items to
+ * one.
+ */
+@Name("cc.photos.uploader.Album")
+@Label("Album Call")
+@Category({"Photos Uploader", "Album"})
+@Description("Album call to the Library API")
+@StackTrace(false)
+public class AlbumEvent extends Event {
+    public static final String LIST = "list";
+    public static final String CREATE = "create";
+    public static final String ADD_MEDIA_ITEMS = "batchAddMediaItems";
+
+    @Label("Operation")
+    public String operation;
+
+    @Label("Album")
+    public String album;
+
+    @Label("Items")
+    @Description("Albums listed, or media items added")
+    public int items;
+
+    @Label("Outcome")
+    public String outcome;
+}
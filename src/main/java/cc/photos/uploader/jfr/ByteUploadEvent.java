@@ -0,0 +1,51 @@
+package cc.photos.uploader.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Upload of the bytes of a file, recorded by {@code ByteUploadTask}.
+ */
+@Name("cc.photos.uploader.ByteUpload")
+@Label("Byte Upload")
+@Category({"Photos Uploader", "Upload"})
+@Description("Upload of the bytes of a file to the Library API")
+@StackTrace(false)
+public class ByteUploadEvent extends Event {
+    @Label("Path")
+    public String path;
+
+    @Label("Album")
+    public String album;
+
+    @Label("Size")
+    @DataAmount
+    public long size;
+
+    @Label("MIME Type")
+    public String mimeType;
+
+    @Label("Chunk Size")
+    @DataAmount
+    public int chunkSize;
+
+    @Label("Chunks")
+    @Description("Number of chunks read, including the ones read again for a retry")
+    public int chunks;
+
+    @Label("Retries")
+    @Description("Number of times the client library went back to re-send bytes")
+    public int retries;
+
+    @Label("Resumed")
+    @Description("Whether the upload continued a resumable session saved in the journal by an earlier run")
+    public boolean resumed;
+
+    @Label("Outcome")
+    public String outcome;
+}
@@ -0,0 +1,30 @@
+package cc.photos.uploader.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A `mediaItems.batchCreate` call for the items of one album, recorded by {@code ItemCreationTask}.
+ */
+@Name("cc.photos.uploader.ItemCreation")
+@Label("Item Creation")
+@Category({"Photos Uploader", "Creation"})
+@Description("Creation of the media items of one album from their upload tokens")
+@StackTrace(false)
+public class ItemCreationEvent extends Event {
+    @Label("Album")
+    public String album;
+
+    @Label("Items")
+    public int items;
+
+    @Label("Created")
+    public int created;
+
+    @Label("Outcome")
+    public String outcome;
+}
@@ -4,5 +4,15 @@ import com.google.photos.types.proto.Album;
 
 import java.io.File;
 
-public record AlbumEntry(Album album, File mediaPath) {
+/**
+ * A file to upload and the album to add it to.
+ *
+ * @param album Album to add the file to.
+ * @param mediaPath File to upload.
+ * @param description Description of the media item, or null to use the default one.
+ */
+public record AlbumEntry(Album album, File mediaPath, String description) {
+    public AlbumEntry(Album album, File mediaPath) {
+        this(album, mediaPath, null);
+    }
 }
@@ -0,0 +1,211 @@
+package cc.photos.uploader.state;
+
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * What is already in the Google Photos library, cached between runs.
+ *
+ * <p>The contents of each album are kept as a sorted array of 64-bit hashes of {@code album id, filename,
+ * creation time}, so that an album of any size costs 8 bytes per item. Media items of the library are kept
+ * by a hash of {@code filename, creation time}, with their id so that they can be added to other albums.
+ *
+ * <p>The cache is a binary file replaced atomically. It holds the time it was built, and is ignored
+ * once older than its time to live.
+ */
+public class LibraryIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(LibraryIndex.class);
+
+    private static final int FORMAT_VERSION = 1;
+
+    private final Instant builtAt;
+    private final Map<String, long[]> albums;
+    private final Map<Long, String> libraryItems;
+
+    private LibraryIndex(Instant builtAt, Map<String, long[]> sortedAlbums, Map<Long, String> libraryItems) {
+        this.builtAt = builtAt;
+        this.albums = sortedAlbums;
+        this.libraryItems = libraryItems;
+    }
+
+    /**
+     * @param builtAt When the library was listed.
+     * @param albums {@link #albumKey}s of the items of each indexed album, in any order, by album id.
+     * @param libraryItems Media item ids by {@link #libraryKey}.
+     */
+    public static LibraryIndex of(Instant builtAt, Map<String, long[]> albums, Map<Long, String> libraryItems) {
+        return fromSorted(builtAt, sorted(albums), libraryItems);
+    }
+
+    /*
+    An index whose album keys are already sorted, e.g. loaded from the cache or taken from another index.
+     */
+    private static LibraryIndex fromSorted(Instant builtAt, Map<String, long[]> sortedAlbums,
+                                           Map<Long, String> libraryItems) {
+        return new LibraryIndex(builtAt, sortedAlbums, libraryItems);
+    }
+
+    private static Map<String, long[]> sorted(Map<String, long[]> albums) {
+        Map<String, long[]> sorted = new HashMap<>(albums.size() * 4 / 3 + 1);
+        albums.forEach((albumId, keys) -> {
+            long[] sortedKeys = keys.clone();
+            Arrays.sort(sortedKeys);
+            sorted.put(albumId, sortedKeys);
+        });
+        return sorted;
+    }
+
+    public static long albumKey(String albumId, String filename, long creationEpochSecond) {
+        return Hashing.murmur3_128().hashString(albumId + '\0' + filename + '\0' + creationEpochSecond,
+                StandardCharsets.UTF_8).asLong();
+    }
+
+    public static long libraryKey(String filename, long creationEpochSecond) {
+        return Hashing.murmur3_128().hashString(filename + '\0' + creationEpochSecond, StandardCharsets.UTF_8).asLong();
+    }
+
+    public Instant getBuiltAt() {
+        return builtAt;
+    }
+
+    /**
+     * Whether the contents of an album are indexed.
+     */
+    public boolean hasAlbum(String albumId) {
+        return albums.containsKey(albumId);
+    }
+
+    /**
+     * Whether an indexed album holds an item with the given filename and creation time.
+     */
+    public boolean inAlbum(String albumId, String filename, long creationEpochSecond) {
+        long[] keys = albums.get(albumId);
+        return keys != null && Arrays.binarySearch(keys, albumKey(albumId, filename, creationEpochSecond)) >= 0;
+    }
+
+    /**
+     * Finds a media item of the library by filename and creation time.
+     *
+     * @return Its id, if there is one.
+     */
+    public Optional<String> findInLibrary(String filename, long creationEpochSecond) {
+        return Optional.ofNullable(libraryItems.get(libraryKey(filename, creationEpochSecond)));
+    }
+
+    /**
+     * Returns this index with the contents of more albums.
+     *
+     * @param contents {@link #albumKey}s of the items of each album, by album id.
+     */
+    public LibraryIndex withAlbums(Map<String, long[]> contents) {
+        Map<String, long[]> merged = new HashMap<>(albums);
+        merged.putAll(sorted(contents));
+        return fromSorted(builtAt, merged, libraryItems);
+    }
+
+    /**
+     * Returns this index without the contents of some albums, e.g. because items were added to them since
+     * they were listed.
+     *
+     * @param albumIds Albums to forget.
+     */
+    public LibraryIndex withoutAlbums(Set<String> albumIds) {
+        Map<String, long[]> kept = new HashMap<>(albums);
+        kept.keySet().removeAll(albumIds);
+        return fromSorted(builtAt, kept, libraryItems);
+    }
+
+    /**
+     * Loads the cached index, unless it is older than its time to live.
+     *
+     * @param file Cache file.
+     * @param timeToLive How long a cached index is used.
+     * @return The index, empty if there is none or it expired.
+     */
+    public static Optional<LibraryIndex> load(Path file, Duration timeToLive) {
+        if (!Files.exists(file)) {
+            return Optional.empty();
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                return Optional.empty();
+            }
+            Instant builtAt = Instant.ofEpochMilli(in.readLong());
+            if (builtAt.plus(timeToLive).isBefore(Instant.now())) {
+                LOG.info("Library index {} built at {} has expired.", file, builtAt);
+                return Optional.empty();
+            }
+            int albumCount = in.readInt();
+            Map<String, long[]> albums = new HashMap<>(albumCount * 4 / 3 + 1);
+            int albumItems = 0;
+            for (int i = 0; i < albumCount; i++) {
+                String albumId = in.readUTF();
+                long[] keys = new long[in.readInt()];
+                for (int j = 0; j < keys.length; j++) {
+                    keys[j] = in.readLong();
+                }
+                albums.put(albumId, keys);
+                albumItems += keys.length;
+            }
+            int itemCount = in.readInt();
+            Map<Long, String> libraryItems = new HashMap<>(itemCount * 4 / 3 + 1);
+            for (int i = 0; i < itemCount; i++) {
+                libraryItems.put(in.readLong(), in.readUTF());
+            }
+            LOG.info("Loaded library index built at {}: {} albums, {} album items, {} library items.",
+                    builtAt, albums.size(), albumItems, libraryItems.size());
+            // Saved sorted.
+            return Optional.of(fromSorted(builtAt, albums, libraryItems));
+        } catch (IOException e) {
+            LOG.warn("Unable to load library index {}: {}", file, e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Saves the index, replacing any earlier one.
+     *
+     * @param file Cache file.
+     */
+    public void save(Path file) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path tmp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(builtAt.toEpochMilli());
+            out.writeInt(albums.size());
+            for (Map.Entry<String, long[]> album : albums.entrySet()) {
+                out.writeUTF(album.getKey());
+                out.writeInt(album.getValue().length);
+                for (long key : album.getValue()) {
+                    out.writeLong(key);
+                }
+            }
+            out.writeInt(libraryItems.size());
+            for (Map.Entry<Long, String> item : libraryItems.entrySet()) {
+                out.writeLong(item.getKey());
+                out.writeUTF(item.getValue());
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
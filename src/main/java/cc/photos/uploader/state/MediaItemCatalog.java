@@ -0,0 +1,110 @@
+package cc.photos.uploader.state;
+
+import cc.photos.uploader.util.ContentFingerprint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Media items created by the uploader, by {@link ContentFingerprint} of the file they were created
+ * from, kept across runs so that a file uploaded before can be added to another album instead of
+ * being uploaded again.
+ *
+ * <p>The file is append-only, one tab separated {@code fingerprint, media item id} line per item; a
+ * line with an empty id forgets the item, e.g. after it was deleted from the library.
+ */
+public class MediaItemCatalog {
+    private static final Logger LOG = LoggerFactory.getLogger(MediaItemCatalog.class);
+
+    private final Path file;
+    private final Map<String, String> mediaItemIds = new HashMap<>();
+    private final Set<Long> sizes = new HashSet<>();
+
+    public MediaItemCatalog(File file) {
+        this.file = file.toPath();
+        load();
+    }
+
+    private void load() {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab < 0) {
+                    continue;
+                }
+                String fingerprint = line.substring(0, tab);
+                String mediaItemId = line.substring(tab + 1);
+                if (mediaItemId.isEmpty()) {
+                    mediaItemIds.remove(fingerprint);
+                } else {
+                    mediaItemIds.put(fingerprint, mediaItemId);
+                    sizes.add(ContentFingerprint.sizeOf(fingerprint));
+                }
+            }
+            LOG.info("Loaded {} media items from catalog {}", mediaItemIds.size(), file);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Unable to load media item catalog {}: {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Whether a media item was created from a file of the given size. Files of a size that is not in
+     * the catalog do not need to be fingerprinted.
+     */
+    public synchronized boolean hasSize(long size) {
+        return sizes.contains(size);
+    }
+
+    public synchronized Optional<String> find(String fingerprint) {
+        return Optional.ofNullable(mediaItemIds.get(fingerprint));
+    }
+
+    /**
+     * Records a media item created from a file.
+     *
+     * @param fingerprint Fingerprint of the file.
+     * @param mediaItemId Id of the created media item.
+     */
+    public synchronized void record(String fingerprint, String mediaItemId) {
+        mediaItemIds.put(fingerprint, mediaItemId);
+        sizes.add(ContentFingerprint.sizeOf(fingerprint));
+        append(fingerprint, mediaItemId);
+    }
+
+    /**
+     * Forgets a media item that can no longer be used.
+     *
+     * @param fingerprint Fingerprint of the file it was created from.
+     */
+    public synchronized void forget(String fingerprint) {
+        if (mediaItemIds.remove(fingerprint) != null) {
+            append(fingerprint, "");
+        }
+    }
+
+    private void append(String fingerprint, String mediaItemId) {
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            Files.writeString(file, fingerprint + '\t' + mediaItemId + '\n', StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            LOG.warn("Unable to update media item catalog {}: {}", file, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package cc.photos.uploader.state;
+
+import cc.photos.uploader.model.AlbumEntry;
+import com.google.photos.types.proto.Album;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Work left over when a run is stopped, saved so that the next run can pick it up.
+ *
+ * <p>Upload tokens are bytes that were already sent but not yet turned into media items; the next run
+ * creates them without uploading again, as long as they are still valid. Paths are entries whose
+ * upload had not started or did not finish.
+ *
+ * <p>The file holds one tab separated line per item: {@code kind, token, album id, album title, path,
+ * saved at, description}. Files written before descriptions were kept have no description field.
+ */
+public class PendingWork {
+    private static final Logger LOG = LoggerFactory.getLogger(PendingWork.class);
+
+    /**
+     * Upload tokens are valid for a day, keep a margin so that they do not expire while being created.
+     * See https://developers.google.com/photos/library/guides/upload-media#uploading-bytes
+     */
+    @SuppressWarnings("JavadocLinkAsPlainText")
+    private static final Duration TOKEN_VALIDITY = Duration.ofHours(20);
+
+    private static final String KIND_TOKEN = "token";
+    private static final String KIND_PATH = "path";
+
+    private final Path file;
+
+    public PendingWork(File file) {
+        this.file = file.toPath();
+    }
+
+    /**
+     * Saves the leftover work, replacing any earlier one.
+     *
+     * @param uploadTokens Upload tokens not yet created, with the entry they were uploaded for.
+     * @param entries Entries that were not uploaded.
+     */
+    public void save(Map<String, AlbumEntry> uploadTokens, List<AlbumEntry> entries) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        long savedAt = Instant.now().toEpochMilli();
+        Path tmp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, AlbumEntry> token : uploadTokens.entrySet()) {
+                writeLine(writer, KIND_TOKEN, token.getKey(), token.getValue(), savedAt);
+            }
+            for (AlbumEntry entry : entries) {
+                writeLine(writer, KIND_PATH, "", entry, savedAt);
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOG.info("Saved {} upload tokens and {} paths for the next run to {}", uploadTokens.size(), entries.size(), file);
+    }
+
+    /**
+     * Loads the work left over by an earlier run and removes it, so that it is picked up only once.
+     * Tokens that are no longer valid are returned as entries to upload again.
+     *
+     * @return The leftover work, empty if there is none.
+     */
+    public Leftovers take() throws IOException {
+        Leftovers leftovers = new Leftovers(new LinkedHashMap<>(), new ArrayList<>());
+        if (!Files.exists(file)) {
+            return leftovers;
+        }
+        Instant tokensValidAfter = Instant.now().minus(TOKEN_VALIDITY);
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 6 && fields.length != 7) {
+                    LOG.warn("Ignoring malformed pending work line: {}", line);
+                    continue;
+                }
+                Album album = Album.newBuilder().setId(fields[2]).setTitle(fields[3]).build();
+                String description = fields.length == 7 && !fields[6].isEmpty() ? fields[6] : null;
+                AlbumEntry entry = new AlbumEntry(album, new File(fields[4]), description);
+                Instant savedAt = Instant.ofEpochMilli(Long.parseLong(fields[5]));
+                if (KIND_TOKEN.equals(fields[0]) && savedAt.isAfter(tokensValidAfter)) {
+                    leftovers.uploadTokens().put(fields[1], entry);
+                } else {
+                    leftovers.entries().add(entry);
+                }
+            }
+        }
+        Files.delete(file);
+        LOG.info("Picked up {} upload tokens and {} paths left over by the previous run",
+                leftovers.uploadTokens().size(), leftovers.entries().size());
+        return leftovers;
+    }
+
+    private static void writeLine(BufferedWriter writer, String kind, String token, AlbumEntry entry, long savedAt)
+            throws IOException {
+        // Descriptions are free text, keep them on a single field.
+        String description = entry.description() == null ? "" : entry.description().replaceAll("[\t\r\n]", " ");
+        writer.write(String.join("\t", kind, token, entry.album().getId(), entry.album().getTitle(),
+                entry.mediaPath().getPath(), String.valueOf(savedAt), description));
+        writer.newLine();
+    }
+
+    /**
+     * Work left over by an earlier run.
+     *
+     * @param uploadTokens Upload tokens still valid, with the entry they were uploaded for.
+     * @param entries Entries to upload again.
+     */
+    public record Leftovers(Map<String, AlbumEntry> uploadTokens, List<AlbumEntry> entries) {
+        public boolean isEmpty() {
+            return uploadTokens.isEmpty() && entries.isEmpty();
+        }
+    }
+}
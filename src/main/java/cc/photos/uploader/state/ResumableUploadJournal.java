@@ -0,0 +1,185 @@
+package cc.photos.uploader.state;
+
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.Properties;
+
+/**
+ * Persists the resumable upload session of large files so that an interrupted upload can continue
+ * from its last committed offset on the next run, instead of sending the whole file again.
+ *
+ * <p>Each session is stored as a small properties file in the journal directory, named after a hash
+ * of the absolute path of the media file. Files are replaced atomically, so a crash while writing
+ * never leaves a truncated session behind.
+ *
+ * <p>A session is only reused while it is inside the validity window and the media file has the
+ * same size and modification time as when the session was started.
+ */
+public class ResumableUploadJournal {
+    private static final Logger LOG = LoggerFactory.getLogger(ResumableUploadJournal.class);
+
+    private static final String KEY_PATH = "path";
+    private static final String KEY_SIZE = "size";
+    private static final String KEY_LAST_MODIFIED = "lastModified";
+    private static final String KEY_UPLOAD_URL = "uploadUrl";
+    private static final String KEY_COMMITTED_OFFSET = "committedOffset";
+    private static final String KEY_STARTED_AT = "startedAt";
+
+    private final Path directory;
+    private final long threshold;
+    private final Duration validity;
+
+    /**
+     * @param directory Directory where sessions are stored. Created if absent.
+     * @param threshold Files smaller than this number of bytes are not journaled.
+     * @param validity How long after it was started a session may still be resumed.
+     */
+    public ResumableUploadJournal(File directory, long threshold, Duration validity) {
+        this.directory = directory.toPath();
+        this.threshold = threshold;
+        this.validity = validity;
+    }
+
+    /**
+     * Whether uploads of the given file should be journaled.
+     *
+     * @param mediaFile File about to be uploaded.
+     * @return True if the file is large enough to be worth resuming.
+     */
+    public boolean accepts(File mediaFile) {
+        return mediaFile.length() >= threshold;
+    }
+
+    /**
+     * Looks up a session that can still be resumed for the given file. Stale sessions are removed.
+     *
+     * @param mediaFile File about to be uploaded.
+     * @return The saved session, or empty if there is none or it can no longer be used.
+     */
+    public Optional<Session> find(File mediaFile) {
+        Path sessionFile = sessionFile(mediaFile);
+        if (!Files.exists(sessionFile)) {
+            return Optional.empty();
+        }
+        Properties props = new Properties();
+        try (Reader reader = Files.newBufferedReader(sessionFile, StandardCharsets.UTF_8)) {
+            props.load(reader);
+        } catch (IOException e) {
+            LOG.warn("Unable to read upload session {}: {}", sessionFile, e.getMessage());
+            remove(mediaFile);
+            return Optional.empty();
+        }
+
+        Session session = new Session(
+                new File(props.getProperty(KEY_PATH)),
+                Long.parseLong(props.getProperty(KEY_SIZE)),
+                Long.parseLong(props.getProperty(KEY_LAST_MODIFIED)),
+                props.getProperty(KEY_UPLOAD_URL),
+                Long.parseLong(props.getProperty(KEY_COMMITTED_OFFSET)),
+                Instant.ofEpochMilli(Long.parseLong(props.getProperty(KEY_STARTED_AT))));
+
+        if (session.startedAt().plus(validity).isBefore(Instant.now())) {
+            LOG.info("Upload session for {} has expired, starting over.", mediaFile);
+            remove(mediaFile);
+            return Optional.empty();
+        }
+        if (session.size() != mediaFile.length() || session.lastModified() != mediaFile.lastModified()) {
+            LOG.info("{} has changed since its upload session was started, starting over.", mediaFile);
+            remove(mediaFile);
+            return Optional.empty();
+        }
+        return Optional.of(session);
+    }
+
+    /**
+     * Saves a newly started session for the given file.
+     *
+     * @param mediaFile File being uploaded.
+     * @param uploadUrl Resumable session URL returned by the API.
+     * @return The saved session.
+     */
+    public Session start(File mediaFile, String uploadUrl) throws IOException {
+        Session session = new Session(mediaFile.getAbsoluteFile(), mediaFile.length(), mediaFile.lastModified(),
+                uploadUrl, 0L, Instant.now());
+        save(session);
+        return session;
+    }
+
+    /**
+     * Replaces the stored session.
+     *
+     * @param session Session to store.
+     */
+    public void save(Session session) throws IOException {
+        Files.createDirectories(directory);
+        Properties props = new Properties();
+        props.setProperty(KEY_PATH, session.mediaPath().getAbsolutePath());
+        props.setProperty(KEY_SIZE, String.valueOf(session.size()));
+        props.setProperty(KEY_LAST_MODIFIED, String.valueOf(session.lastModified()));
+        props.setProperty(KEY_UPLOAD_URL, session.uploadUrl());
+        props.setProperty(KEY_COMMITTED_OFFSET, String.valueOf(session.committedOffset()));
+        props.setProperty(KEY_STARTED_AT, String.valueOf(session.startedAt().toEpochMilli()));
+
+        Path sessionFile = sessionFile(session.mediaPath());
+        Path tmp = Files.createTempFile(directory, sessionFile.getFileName().toString(), ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            props.store(writer, null);
+        }
+        Files.move(tmp, sessionFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Forgets the session of the given file, typically once its upload has completed.
+     *
+     * @param mediaFile File that was uploaded.
+     */
+    public void remove(File mediaFile) {
+        try {
+            Files.deleteIfExists(sessionFile(mediaFile));
+        } catch (IOException e) {
+            LOG.warn("Unable to remove upload session for {}: {}", mediaFile, e.getMessage());
+        }
+    }
+
+    private Path sessionFile(File mediaFile) {
+        String key = Hashing.sha256()
+                .hashString(mediaFile.getAbsolutePath(), StandardCharsets.UTF_8)
+                .toString();
+        return directory.resolve(key + ".session");
+    }
+
+    /**
+     * A resumable upload session.
+     *
+     * @param mediaPath File being uploaded.
+     * @param size Size of the file when the session was started.
+     * @param lastModified Modification time of the file when the session was started.
+     * @param uploadUrl Session URL returned by the API.
+     * @param committedOffset Number of bytes acknowledged by the API so far.
+     * @param startedAt When the session was started.
+     */
+    public record Session(File mediaPath, long size, long lastModified, String uploadUrl, long committedOffset,
+                          Instant startedAt) {
+
+        public Session withCommittedOffset(long offset) {
+            return new Session(mediaPath, size, lastModified, uploadUrl, offset, startedAt);
+        }
+
+        public Session withUploadUrl(String url) {
+            return new Session(mediaPath, size, lastModified, url, committedOffset, startedAt);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package cc.photos.uploader.state;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.Properties;
+
+/**
+ * Upload chunk size and concurrency measured by the probe mode, loaded automatically by later runs.
+ *
+ * @param chunkSize Chunk size for upload requests, in bytes.
+ * @param concurrency Number of parallel byte uploads.
+ * @param bytesPerSecond Throughput measured with these settings.
+ * @param errorRate Fraction of probe uploads that failed with these settings.
+ * @param measuredAt When the profile was measured.
+ */
+public record TuningProfile(int chunkSize, int concurrency, long bytesPerSecond, double errorRate,
+                            Instant measuredAt) {
+    private static final Logger LOG = LoggerFactory.getLogger(TuningProfile.class);
+
+    private static final String KEY_CHUNK_SIZE = "chunkSize";
+    private static final String KEY_CONCURRENCY = "concurrency";
+    private static final String KEY_BYTES_PER_SECOND = "bytesPerSecond";
+    private static final String KEY_ERROR_RATE = "errorRate";
+    private static final String KEY_MEASURED_AT = "measuredAt";
+
+    /**
+     * Loads a profile.
+     *
+     * @param file Profile file.
+     * @return The profile, or empty if the file does not exist or cannot be read.
+     */
+    public static Optional<TuningProfile> load(Path file) {
+        if (!Files.exists(file)) {
+            return Optional.empty();
+        }
+        Properties props = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            props.load(reader);
+            return Optional.of(new TuningProfile(
+                    Integer.parseInt(props.getProperty(KEY_CHUNK_SIZE)),
+                    Integer.parseInt(props.getProperty(KEY_CONCURRENCY)),
+                    Long.parseLong(props.getProperty(KEY_BYTES_PER_SECOND)),
+                    Double.parseDouble(props.getProperty(KEY_ERROR_RATE)),
+                    Instant.parse(props.getProperty(KEY_MEASURED_AT))));
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Ignoring unreadable tuning profile {}: {}", file, e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Saves this profile, replacing the file atomically.
+     *
+     * @param file Profile file.
+     */
+    public void save(Path file) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Properties props = new Properties();
+        props.setProperty(KEY_CHUNK_SIZE, String.valueOf(chunkSize));
+        props.setProperty(KEY_CONCURRENCY, String.valueOf(concurrency));
+        props.setProperty(KEY_BYTES_PER_SECOND, String.valueOf(bytesPerSecond));
+        props.setProperty(KEY_ERROR_RATE, String.valueOf(errorRate));
+        props.setProperty(KEY_MEASURED_AT, measuredAt.toString());
+
+        Path tmp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            props.store(writer, "Written by gphoto-uploader --probe");
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
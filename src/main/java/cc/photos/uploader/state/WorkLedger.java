@@ -0,0 +1,339 @@
+package cc.photos.uploader.state;
+
+import cc.photos.uploader.model.AlbumEntry;
+import com.google.common.hash.Hashing;
+import com.google.photos.types.proto.Album;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * A work ledger shared by several uploader processes, typically on different hosts, through a
+ * directory they can all see (e.g. on the NAS holding the photos).
+ *
+ * <p>Before uploading an entry, a node claims it by atomically creating a lease file for it. While
+ * the node works on the entry the lease is renewed by touching the file; once the media item is
+ * created the node writes a done marker and drops the lease. A lease that has not been renewed for
+ * the lease duration belongs to a dead node and may be taken over by another one, so every entry is
+ * eventually uploaded exactly once.
+ *
+ * <p>A lease holds its owner and a generation, the number of times it was taken over. To take over a
+ * lease, a node first creates a marker file for the next generation, which only one node can do, then
+ * atomically replaces the lease with its own. The lease file never goes missing while it is held, so a
+ * node whose lease was taken over notices it on its next renewal, and no other node can claim the entry
+ * in between.
+ *
+ * <p>The same protocol serializes album creation, so that nodes share a single album per title
+ * instead of each creating their own.
+ *
+ * <p>The ledger relies on exclusive file creation and atomic rename, which NFSv3+ and SMB provide,
+ * and assumes the clocks of the nodes are roughly in sync compared to the lease duration, and that a node
+ * is not suspended for half the lease duration between two file operations.
+ */
+public class WorkLedger implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(WorkLedger.class);
+
+    private static final long ALBUM_LOCK_POLL_MILLIS = 1000;
+
+    /** Outcome of a claim. */
+    public enum Claim {
+        /** This node now owns the entry and must upload it. */
+        CLAIMED,
+        /** The entry was already uploaded by some node. */
+        DONE,
+        /** Another live node owns the entry. */
+        HELD
+    }
+
+    private final Path directory;
+    private final String nodeId;
+    private final Duration leaseDuration;
+    /** Leases held by this node, with their generation. */
+    private final Map<Path, Integer> heldLeases = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService heartbeat;
+
+    /**
+     * @param directory Shared ledger directory. Created if absent.
+     * @param nodeId Identifier of this node, unique among the nodes sharing the ledger.
+     * @param leaseDuration Time after which a lease that was not renewed is considered abandoned.
+     */
+    public WorkLedger(Path directory, String nodeId, Duration leaseDuration) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.nodeId = nodeId;
+        this.leaseDuration = leaseDuration;
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ledger-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long renewMillis = Math.max(1, leaseDuration.toMillis() / 3);
+        heartbeat.scheduleAtFixedRate(this::renewLeases, renewMillis, renewMillis, TimeUnit.MILLISECONDS);
+        LOG.info("Using work ledger at {} as node {}", directory, nodeId);
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Tries to claim an entry for this node.
+     *
+     * @param entry Entry about to be uploaded.
+     * @return Whether this node should upload the entry.
+     */
+    public Claim claim(AlbumEntry entry) throws IOException {
+        String key = key(entry);
+        Path done = directory.resolve(key + ".done");
+        if (Files.exists(done)) {
+            return Claim.DONE;
+        }
+        Path lease = directory.resolve(key + ".lease");
+        if (!tryAcquire(lease)) {
+            return Claim.HELD;
+        }
+        // The previous owner writes its done marker before dropping its lease, so check again now that
+        // the lease is ours.
+        if (Files.exists(done)) {
+            release(lease);
+            return Claim.DONE;
+        }
+        return Claim.CLAIMED;
+    }
+
+    /**
+     * Records that an entry claimed by this node was created as a media item.
+     *
+     * @param entry Entry that was created.
+     */
+    public void complete(AlbumEntry entry) throws IOException {
+        String key = key(entry);
+        writeAtomically(directory.resolve(key + ".done"), nodeId + "\n" + entry.mediaPath() + "\n");
+        release(directory.resolve(key + ".lease"));
+    }
+
+    /**
+     * Gives up an entry claimed by this node without completing it, so that it can be retried.
+     *
+     * @param entry Entry that could not be uploaded or created.
+     */
+    public void abandon(AlbumEntry entry) throws IOException {
+        release(directory.resolve(key(entry) + ".lease"));
+    }
+
+    /**
+     * Returns the album with the given title shared by all nodes, creating it if no node has yet.
+     *
+     * @param title Title of the album.
+     * @param creator Creates the album through the API, called by at most one node.
+     * @return The album. Only its id and title are set if it was created by another node.
+     */
+    public Album sharedAlbum(String title, Supplier<Album> creator) throws IOException, InterruptedException {
+        String key = "album-" + hash(title);
+        Path idFile = directory.resolve(key + ".id");
+        Path lock = directory.resolve(key + ".lease");
+        while (true) {
+            if (Files.exists(idFile)) {
+                String albumId = Files.readString(idFile, StandardCharsets.UTF_8).trim();
+                return Album.newBuilder().setId(albumId).setTitle(title).build();
+            }
+            if (tryAcquire(lock)) {
+                try {
+                    if (Files.exists(idFile)) {
+                        continue;
+                    }
+                    Album album = creator.get();
+                    writeAtomically(idFile, album.getId());
+                    return album;
+                } finally {
+                    release(lock);
+                }
+            }
+            TimeUnit.MILLISECONDS.sleep(ALBUM_LOCK_POLL_MILLIS);
+        }
+    }
+
+    private boolean tryAcquire(Path lease) throws IOException {
+        try {
+            Files.writeString(lease, nodeId + "\n0", StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            heldLeases.put(lease, 0);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            // Held by a live node, unless it expired.
+        }
+        Optional<Lease> stale = readExpired(lease);
+        if (stale.isEmpty()) {
+            return false;
+        }
+
+        // The lease was abandoned by a dead node. Only one node may take over each generation of a lease: the one
+        // that creates its marker. The lease file itself is replaced atomically and never goes missing, so no
+        // node can create a fresh lease in the meantime.
+        int generation = stale.get().generation() + 1;
+        Path marker;
+        while (true) {
+            marker = marker(lease, generation);
+            try {
+                Files.writeString(marker, nodeId, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                break;
+            } catch (FileAlreadyExistsException e) {
+                if (!isOlderThan(marker, leaseDuration)) {
+                    return false;
+                }
+                // Left by a node that died while taking over, markers are never reused so try the next one.
+                generation++;
+            }
+        }
+        // The lease may have been released and claimed again, or renewed, since it was read.
+        if (!stale.equals(readExpired(lease))) {
+            Files.deleteIfExists(marker);
+            return false;
+        }
+        writeAtomically(lease, nodeId + "\n" + generation);
+        heldLeases.put(lease, generation);
+        LOG.info("Took over lease {} abandoned by node {}", lease.getFileName(), stale.get().owner());
+        return true;
+    }
+
+    /**
+     * Reads a lease that was not renewed for the lease duration.
+     *
+     * @return The lease, or empty if it is missing or not expired. A lease its creator died before writing
+     *     counts as generation 0 of an unknown owner.
+     */
+    private Optional<Lease> readExpired(Path lease) throws IOException {
+        if (!isOlderThan(lease, leaseDuration)) {
+            return Optional.empty();
+        }
+        return Optional.of(readLease(lease).orElse(new Lease("unknown", 0)));
+    }
+
+    private boolean isOlderThan(Path file, Duration age) throws IOException {
+        try {
+            Instant renewedAt = Files.getLastModifiedTime(file).toInstant();
+            return renewedAt.plus(age).isBefore(Instant.now());
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads the owner and generation of a lease.
+     *
+     * @return The lease, empty if it is missing, being written or unreadable.
+     */
+    private static Optional<Lease> readLease(Path lease) {
+        try {
+            String[] lines = Files.readString(lease, StandardCharsets.UTF_8).split("\n");
+            if (lines.length < 2) {
+                return Optional.empty();
+            }
+            return Optional.of(new Lease(lines[0], Integer.parseInt(lines[1].trim())));
+        } catch (IOException | NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static Path marker(Path lease, int generation) {
+        return lease.resolveSibling(lease.getFileName() + "." + generation);
+    }
+
+    private void release(Path lease) throws IOException {
+        // Never delete a lease this node does not hold, it may belong to the node that took it over.
+        Integer generation = heldLeases.remove(lease);
+        if (generation == null) {
+            return;
+        }
+        Optional<Lease> current = readLease(lease);
+        if (current.isEmpty() || !current.get().owner().equals(nodeId)) {
+            return;
+        }
+        // A lease that went without renewal for a while may be taken over while it is deleted, it is left to
+        // expire instead. A done marker is always written first, so the node taking it over skips the entry.
+        if (isOlderThan(lease, leaseDuration.dividedBy(2))) {
+            LOG.warn("Lease {} was not renewed in time, leaving it to expire.", lease.getFileName());
+            return;
+        }
+        Files.deleteIfExists(lease);
+        // Including those left by nodes that died while taking over, above the generation of this lease.
+        for (int i = 1; i <= generation || Files.exists(marker(lease, i)); i++) {
+            Files.deleteIfExists(marker(lease, i));
+        }
+    }
+
+    private void renewLeases() {
+        FileTime now = FileTime.from(Instant.now());
+        for (Path lease : heldLeases.keySet()) {
+            try {
+                Optional<Lease> current = readLease(lease);
+                if (current.isEmpty()) {
+                    // Unreadable for now, e.g. a network hiccup, the lease is never missing while held.
+                    LOG.debug("Unable to read lease {}, renewing it next time.", lease.getFileName());
+                    continue;
+                }
+                if (!nodeId.equals(current.get().owner())) {
+                    LOG.warn("Lease {} was taken over by node {}.", lease.getFileName(), current.get().owner());
+                    heldLeases.remove(lease);
+                    continue;
+                }
+                Files.setLastModifiedTime(lease, now);
+            } catch (IOException e) {
+                LOG.warn("Unable to renew lease {}: {}", lease.getFileName(), e.getMessage());
+            }
+        }
+    }
+
+    private void writeAtomically(Path target, String content) throws IOException {
+        Path tmp = Files.createTempFile(directory, target.getFileName().toString(), ".tmp");
+        Files.writeString(tmp, content, StandardCharsets.UTF_8);
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String key(AlbumEntry entry) {
+        return hash(entry.album().getTitle() + '\0' + entry.mediaPath().getPath());
+    }
+
+    private static String hash(String value) {
+        return Hashing.sha256().hashString(value, StandardCharsets.UTF_8).toString();
+    }
+
+    /**
+     * Owner of a lease.
+     *
+     * @param owner Node holding it.
+     * @param generation Number of times it was taken over from a dead node.
+     */
+    private record Lease(String owner, int generation) {}
+
+    @Override
+    public void close() {
+        heartbeat.shutdownNow();
+        for (Path lease : List.copyOf(heldLeases.keySet())) {
+            try {
+                release(lease);
+            } catch (IOException e) {
+                LOG.warn("Unable to release lease {}: {}", lease.getFileName(), e.getMessage());
+            }
+        }
+    }
+}
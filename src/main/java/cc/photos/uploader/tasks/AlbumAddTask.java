@@ -0,0 +1,105 @@
+package cc.photos.uploader.tasks;
+
+import cc.photos.uploader.gateway.PhotosGateway;
+import cc.photos.uploader.jfr.AlbumEvent;
+import cc.photos.uploader.trace.TraceRecorder;
+import com.google.photos.library.v1.PhotosLibraryClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+
+/**
+ * Adds existing media items to an album.
+ *
+ * <p>This task calls {@link PhotosLibraryClient#batchAddMediaItemsToAlbum(String, List)}. Both the
+ * media items and the album must have been created by this application. Like {@link ItemCreationTask},
+ * it should only be called serially for the same user.
+ */
+public class AlbumAddTask implements Callable<AlbumAddTask.AlbumAddResult> {
+    private static final Logger LOG = LoggerFactory.getLogger(AlbumAddTask.class);
+
+    /**
+     * Number of media items that can be added in a call to `albums.batchAddMediaItems`. See
+     * https://developers.google.com/photos/library/reference/rest/v1/albums/batchAddMediaItems
+     */
+    @SuppressWarnings("JavadocLinkAsPlainText")
+    public static final int MAX_ITEMS_PER_CALL = 50;
+
+    /** API to use. */
+    private final PhotosGateway gateway;
+
+    /** Album to add the media items to. */
+    private final String albumId;
+
+    /** Media items to add, at most {@link #MAX_ITEMS_PER_CALL}. */
+    private final List<String> mediaItemIds;
+
+    /**
+     * @param gateway API to call.
+     * @param albumId Album to add the media items to.
+     * @param mediaItemIds Media items to add, at most {@link #MAX_ITEMS_PER_CALL}.
+     */
+    public AlbumAddTask(PhotosGateway gateway, String albumId, List<String> mediaItemIds) {
+        if (mediaItemIds.size() > MAX_ITEMS_PER_CALL) {
+            throw new IllegalArgumentException("At most " + MAX_ITEMS_PER_CALL + " media items can be added at once.");
+        }
+        this.gateway = gateway;
+        this.albumId = albumId;
+        this.mediaItemIds = mediaItemIds;
+    }
+
+    /**
+     * Adds the media items. The API call either succeeds or fails for all of them.
+     *
+     * @return Result of the API call.
+     */
+    @Override
+    public AlbumAddResult call() {
+        LOG.debug("Adding {} existing items to album: {}", mediaItemIds.size(), albumId);
+        AlbumEvent event = new AlbumEvent();
+        event.begin();
+        long start = System.nanoTime();
+        AlbumAddResult result;
+        try {
+            gateway.batchAddMediaItemsToAlbum(albumId, mediaItemIds);
+            result = new AlbumAddResult(albumId, mediaItemIds, null);
+        } catch (Exception exception) {
+            // The client library already retried according to its retry settings.
+            LOG.error("API error while adding items to album {}. {}", albumId, exception.getMessage(), exception);
+            result = new AlbumAddResult(albumId, mediaItemIds, exception);
+        }
+        TraceRecorder.add(mediaItemIds.size(), System.nanoTime() - start, result.error.orElse(null));
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = AlbumEvent.ADD_MEDIA_ITEMS;
+            event.album = albumId;
+            event.items = mediaItemIds.size();
+            event.outcome = result.error.map(Throwable::toString).orElse("OK");
+            event.commit();
+        }
+        return result;
+    }
+
+    /** Result of an {@link AlbumAddTask}. */
+    public static class AlbumAddResult {
+        /** Album the media items were added to. */
+        public final String albumId;
+        /** Media items that were added. */
+        public final List<String> mediaItemIds;
+        /** {@link Throwable} that describes a failure if it occurred. */
+        public final Optional<Throwable> error;
+
+        private AlbumAddResult(String albumId, List<String> mediaItemIds, Throwable error) {
+            this.albumId = albumId;
+            this.mediaItemIds = mediaItemIds;
+            this.error = Optional.ofNullable(error);
+        }
+
+        public boolean isOk() {
+            return error.isEmpty();
+        }
+    }
+}
@@ -1,12 +1,22 @@
 package cc.photos.uploader.tasks;
 
+import cc.photos.uploader.gateway.PhotosGateway;
+import cc.photos.uploader.jfr.ByteUploadEvent;
 import cc.photos.uploader.model.AlbumEntry;
+import cc.photos.uploader.state.ResumableUploadJournal;
+import cc.photos.uploader.util.BandwidthLimiter;
+import cc.photos.uploader.util.ChunkedFile;
+import cc.photos.uploader.trace.TraceRecorder;
+import cc.photos.uploader.util.ReadAheadPool;
 import com.google.photos.library.v1.PhotosLibraryClient;
 import com.google.photos.library.v1.upload.UploadMediaItemRequest;
 import com.google.photos.library.v1.upload.UploadMediaItemResponse;
 import com.google.rpc.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.File;
-import java.io.RandomAccessFile;
+import java.io.IOException;
 import java.net.URLConnection;
 import java.util.concurrent.Callable;
 
@@ -18,23 +28,48 @@ import java.util.concurrent.Callable;
  *
  * <p>Results are returned as an instance of {@link ByteUploadResult}, containing a {@link Status}
  * indicating success or failure of the upload.
+ *
+ * <p>When a {@link ResumableUploadJournal} is given, the resumable session of large files is saved as
+ * chunks complete, and an upload interrupted by an earlier run continues from its committed offset.
+ *
+ * <p>When a {@link ReadAheadPool} is given, the first bytes of the file are taken from it if they were
+ * prefetched.
+ *
+ * <p>Each upload is recorded as a {@link ByteUploadEvent} when the flight recorder is on, and in the
+ * trace when a {@link TraceRecorder} is started.
  */
 public class ByteUploadTask implements Callable<ByteUploadTask.ByteUploadResult> {
+    private static final Logger LOG = LoggerFactory.getLogger(ByteUploadTask.class);
 
     /**
-     * Chunk size for upload requests. You may wish to adjust the default value used by the client
+     * Default chunk size for upload requests. You may wish to adjust the default value used by the client
      * library if you are working on a stable or fast connection and or if you are uploading large
      * files. The chunk size here is used as a guide by the library, it is automatically adjusted to
      * be a multiple on the required chunk size (as required by the Library API) when set in the
-     * {@link UploadMediaItemRequest}.
+     * {@link UploadMediaItemRequest}. A tuning profile written by the probe mode overrides it.
      */
-    private static final int CHUNK_SIZE = 1024 * 1024 * 30; // 30 MB
+    public static final int CHUNK_SIZE_DEFAULT = 1024 * 1024 * 30; // 30 MB
 
-    /** API client to use for the upload. */
-    private final PhotosLibraryClient photosLibraryClient;
+    /** Granularity of chunk sizes accepted by the Library API. */
+    private static final int CHUNK_GRANULARITY = 256 * 1024;
+
+    /** API to use for the upload. */
+    private final PhotosGateway gateway;
 
     private final AlbumEntry entryToUpload;
 
+    /** Journal of resumable sessions, or null if uploads are not resumed across runs. */
+    private final ResumableUploadJournal journal;
+
+    /** Limiter shared by all uploads, or null if bandwidth is not capped. */
+    private final BandwidthLimiter limiter;
+
+    /** Chunk size for upload requests. */
+    private final int chunkSize;
+
+    /** Pool of prefetched file heads, or null if files are not read ahead. */
+    private final ReadAheadPool readAheadPool;
+
     /**
      * Callable that uploads a {@link File} to Google Photos using the {@link PhotosLibraryClient}.
      *
@@ -42,8 +77,43 @@ public class ByteUploadTask implements Callable<ByteUploadTask.ByteUploadResult>
      * @param entryToUpload The file to upload.
      */
     public ByteUploadTask(PhotosLibraryClient client, AlbumEntry entryToUpload) {
-        this.photosLibraryClient = client;
+        this(client, entryToUpload, null, null, CHUNK_SIZE_DEFAULT);
+    }
+
+    /**
+     * Callable that uploads a {@link File} to Google Photos using the {@link PhotosLibraryClient},
+     * resuming the upload from a previous run if the journal has a session for it.
+     *
+     * @param client API client to use for the upload.
+     * @param entryToUpload The file to upload.
+     * @param journal Journal of resumable sessions, may be null.
+     * @param limiter Bandwidth limiter shared by all uploads, may be null.
+     * @param chunkSize Chunk size for upload requests.
+     */
+    public ByteUploadTask(PhotosLibraryClient client, AlbumEntry entryToUpload, ResumableUploadJournal journal,
+                          BandwidthLimiter limiter, int chunkSize) {
+        this(PhotosGateway.of(client), entryToUpload, journal, limiter, chunkSize, null);
+    }
+
+    /**
+     * Callable that uploads a {@link File} to Google Photos through a {@link PhotosGateway}, reading its
+     * first bytes from a pool of prefetched file heads.
+     *
+     * @param gateway API to use for the upload.
+     * @param entryToUpload The file to upload.
+     * @param journal Journal of resumable sessions, may be null.
+     * @param limiter Bandwidth limiter shared by all uploads, may be null.
+     * @param chunkSize Chunk size for upload requests.
+     * @param readAheadPool Pool of prefetched file heads, may be null.
+     */
+    public ByteUploadTask(PhotosGateway gateway, AlbumEntry entryToUpload, ResumableUploadJournal journal,
+                          BandwidthLimiter limiter, int chunkSize, ReadAheadPool readAheadPool) {
+        this.gateway = gateway;
         this.entryToUpload = entryToUpload;
+        this.journal = journal;
+        this.limiter = limiter;
+        this.chunkSize = chunkSize;
+        this.readAheadPool = readAheadPool;
     }
 
     /**
@@ -65,11 +135,20 @@ public class ByteUploadTask implements Callable<ByteUploadTask.ByteUploadResult>
      */
     @Override
     public ByteUploadResult call() {
+        ByteUploadEvent event = new ByteUploadEvent();
+        event.begin();
+        long start = System.nanoTime();
         // Get the mimetype of the file
         final String mimeType = URLConnection.guessContentTypeFromName(entryToUpload.mediaPath().getName());
+        final File mediaFile = entryToUpload.mediaPath();
+        final boolean resumable = journal != null && journal.accepts(mediaFile);
+        final int effectiveChunkSize = chunkSizeFor(mediaFile.length(),
+                limiter != null ? limiter.chunkSizeFor(chunkSize) : chunkSize);
+        event.mimeType = mimeType;
+        event.chunkSize = effectiveChunkSize;
 
         // Automatically close the file after upload
-        try (RandomAccessFile raf = new RandomAccessFile(entryToUpload.mediaPath(), "r")) {
+        try (ChunkedFile raf = new ChunkedFile(mediaFile, limiter, readAheadPool)) {
             /*
              * Create a new upload request consisting of a reference to the file, its media type
              * (e.g. "image/png") and a preferred chunk size.
@@ -79,37 +158,131 @@ public class ByteUploadTask implements Callable<ByteUploadTask.ByteUploadResult>
              * large files are uploaded. Lower this value for slower, unstable connections. If a chunk
              * fails to upload it is automatically retried.
              */
-            UploadMediaItemRequest uploadRequest =
+            UploadMediaItemRequest.Builder uploadRequest =
                     UploadMediaItemRequest.newBuilder()
                             .setDataFile(raf)
                             .setMimeType(mimeType)
-                            .setChunkSize(CHUNK_SIZE)
-                            .build();
+                            .setChunkSize(effectiveChunkSize);
+
+            ResumableUploadJournal.Session session = null;
+            if (resumable) {
+                // Reuse the session of an earlier run, or start one so that its URL is on disk before any
+                // bytes are sent. The client library queries the session for the committed offset and
+                // continues from there.
+                session = resumeOrStartSession(mediaFile, mimeType, event);
+                uploadRequest.setUploadUrl(session.uploadUrl());
+                trackCommittedOffset(raf, session);
+            }
 
             // Upload the bytes and capture the response from the API.
-            UploadMediaItemResponse uploadResponse = photosLibraryClient.uploadMediaItem(uploadRequest);
+            UploadMediaItemResponse uploadResponse = gateway.uploadMediaItem(mediaFile, uploadRequest.build());
 
             if (uploadResponse.getUploadToken().isPresent() && uploadResponse.getError().isEmpty()) {
                 // The upload was successful, because an upload token is present and there was no error.
+                if (resumable) {
+                    journal.remove(mediaFile);
+                }
                 final String uploadToken = uploadResponse.getUploadToken().get();
-                return ByteUploadResult.createSuccessResult(entryToUpload, uploadToken);
+                return recorded(event, start, raf, ByteUploadResult.createSuccessResult(entryToUpload, uploadToken));
             }
 
             if (uploadResponse.getError().isPresent()) {
                 // If the response contains an error, return its cause.
-                Throwable cause = uploadResponse.getError().get().getCause();
-                return ByteUploadResult.createFailureResultWithThrowable(entryToUpload, cause);
+                UploadMediaItemResponse.Error error = uploadResponse.getError().get();
+                if (resumable) {
+                    // Keep the session for the next run if the API says it can be resumed.
+                    if (error.getResumeUrl().isPresent()) {
+                        journal.save(session.withUploadUrl(error.getResumeUrl().get()));
+                    } else {
+                        journal.remove(mediaFile);
+                    }
+                }
+                return recorded(event, start, raf,
+                        ByteUploadResult.createFailureResultWithThrowable(entryToUpload, error.getCause()));
             }
 
             // No error returned, but the upload did not complete and no upload token was returned.
             // Return an unknown error.
-            return ByteUploadResult.createFailureResultWithThrowable(
-                    entryToUpload, new Exception("Unknown error."));
+            return recorded(event, start, raf, ByteUploadResult.createFailureResultWithThrowable(
+                    entryToUpload, new Exception("Unknown error.")));
 
         } catch (Exception exception) {
             // The upload could not be completed.
-            return ByteUploadResult.createFailureResultWithThrowable(entryToUpload, exception);
+            return recorded(event, start, null,
+                    ByteUploadResult.createFailureResultWithThrowable(entryToUpload, exception));
+        }
+    }
+
+    /*
+    Records an upload in the trace and as a flight recorder event. The file is null when the upload threw, its chunks
+    are then not known.
+     */
+    private ByteUploadResult recorded(ByteUploadEvent event, long start, ChunkedFile raf, ByteUploadResult result) {
+        if (raf != null) {
+            event.chunks = raf.getChunkCount();
+            event.retries = raf.getRetryCount();
+        }
+        TraceRecorder.upload(entryToUpload, event.mimeType, event.chunkSize, event.chunks, event.retries,
+                event.resumed, System.nanoTime() - start, result.error);
+        event.end();
+        if (event.shouldCommit()) {
+            event.path = entryToUpload.mediaPath().getPath();
+            event.album = entryToUpload.album().getTitle();
+            event.size = entryToUpload.mediaPath().length();
+            event.outcome = result.isOk() ? "OK" : String.valueOf(result.error);
+            event.commit();
         }
+        return result;
+    }
+
+    /**
+     * Chunk size of the upload of a file: the preferred chunk size, or less for a smaller file, so that the
+     * client library does not hold a whole chunk in memory for a few bytes.
+     *
+     * @param fileSize Size of the file in bytes.
+     * @param preferredChunkSize Chunk size of large files.
+     * @return The chunk size to use, which is also the most file bytes held in memory by the upload.
+     */
+    public static int chunkSizeFor(long fileSize, int preferredChunkSize) {
+        long fitted = Math.max(CHUNK_GRANULARITY, (fileSize + CHUNK_GRANULARITY - 1) / CHUNK_GRANULARITY * CHUNK_GRANULARITY);
+        return (int) Math.min(preferredChunkSize, fitted);
+    }
+
+    /**
+     * Chunk size of uploads sharing a memory budget: the preferred chunk size, or less so that a chunk fits in
+     * the budget.
+     *
+     * @param preferredChunkSize Chunk size of large files.
+     * @param budgetBytes Most file bytes held in memory by all uploads.
+     * @return The chunk size to use, the budget rounded down to the chunk granularity of the API if it is
+     *     smaller, and never less than one granule.
+     */
+    public static int chunkSizeWithin(int preferredChunkSize, long budgetBytes) {
+        long fitted = Math.max(CHUNK_GRANULARITY, budgetBytes / CHUNK_GRANULARITY * CHUNK_GRANULARITY);
+        return (int) Math.min(preferredChunkSize, fitted);
+    }
+
+    private ResumableUploadJournal.Session resumeOrStartSession(File mediaFile, String mimeType, ByteUploadEvent event)
+            throws IOException, InterruptedException {
+        ResumableUploadJournal.Session session = journal.find(mediaFile).orElse(null);
+        if (session != null) {
+            event.resumed = true;
+            LOG.info("Resuming upload of {} from byte {} of {}", mediaFile, session.committedOffset(), session.size());
+            return session;
+        }
+        String uploadUrl = gateway.startResumableUpload(mimeType, mediaFile.length());
+        return journal.start(mediaFile, uploadUrl);
+    }
+
+    private void trackCommittedOffset(ChunkedFile raf, ResumableUploadJournal.Session session) {
+        raf.onChunkStart(offset -> {
+            try {
+                journal.save(session.withCommittedOffset(offset));
+            } catch (IOException e) {
+                // Not fatal, the API is queried for the committed offset when the session is resumed.
+                LOG.warn("Unable to save upload offset for {}: {}", session.mediaPath(), e.getMessage());
+            }
+        });
     }
 
     /** Result of a {@link ByteUploadTask}. */
@@ -121,11 +294,14 @@ public class ByteUploadTask implements Callable<ByteUploadTask.ByteUploadResult>
         public final String uploadToken;
         /** Error that occurred during upload. */
         public final Throwable error;
+        /** Whether the upload was not attempted, e.g. because another node owns the entry. */
+        public final boolean skipped;
 
-        private ByteUploadResult(AlbumEntry entryBeingUploaded, Throwable error, String uploadToken) {
+        private ByteUploadResult(AlbumEntry entryBeingUploaded, Throwable error, String uploadToken, boolean skipped) {
             this.entryBeingUploaded = entryBeingUploaded;
             this.uploadToken = uploadToken;
             this.error = error;
+            this.skipped = skipped;
         }
         /**
          * Whether the upload was successful. A successful upload result contains an upload token and no
@@ -144,7 +320,7 @@ public class ByteUploadTask implements Callable<ByteUploadTask.ByteUploadResult>
          * @param uploadToken Upload token as returned from the API.
          */
         public static ByteUploadResult createSuccessResult(AlbumEntry entryBeingUploaded, String uploadToken) {
-            return new ByteUploadResult(entryBeingUploaded, null, uploadToken);
+            return new ByteUploadResult(entryBeingUploaded, null, uploadToken, false);
         }
 
         /**
@@ -155,7 +331,16 @@ public class ByteUploadTask implements Callable<ByteUploadTask.ByteUploadResult>
          * @param error Error that occurred during upload.
          */
         public static ByteUploadResult createFailureResultWithThrowable(AlbumEntry entryBeingUploaded, Throwable error) {
-            return new ByteUploadResult(entryBeingUploaded, error, "");
+            return new ByteUploadResult(entryBeingUploaded, error, "", false);
+        }
+
+        /**
+         * Result of a {@link ByteUploadTask} that was not attempted.
+         *
+         * @param entryBeingUploaded File that was not uploaded.
+         */
+        public static ByteUploadResult createSkippedResult(AlbumEntry entryBeingUploaded) {
+            return new ByteUploadResult(entryBeingUploaded, null, "", true);
         }
     }
 }
\ No newline at end of file
@@ -1,5 +1,10 @@
 package cc.photos.uploader.tasks;
 
+import cc.photos.uploader.gateway.PhotosGateway;
+import cc.photos.uploader.jfr.ItemCreationEvent;
+import cc.photos.uploader.model.AlbumEntry;
+import cc.photos.uploader.trace.TraceRecorder;
+import cc.photos.uploader.util.ProgressLog;
 import com.google.photos.library.v1.PhotosLibraryClient;
 import com.google.photos.library.v1.proto.BatchCreateMediaItemsResponse;
 import com.google.photos.library.v1.proto.NewMediaItem;
@@ -32,6 +37,9 @@ import static java.lang.String.format;
  * same user. It may be called in parallel for different users. Results are returned as a {@link
  * Map} that matches upload tokens (given as the input) to an instance of {@link
  * ItemCreationResult}, which contains a {@link MediaItem} if the item was successfully created.
+ *
+ * <p>Each per-album call is recorded as an {@link ItemCreationEvent} when the flight recorder is on, and
+ * in the trace when a {@link TraceRecorder} is started.
  */
 public class ItemCreationTask implements Callable<Map<String, ItemCreationTask.ItemCreationResult>> {
     private static final Logger LOG = LoggerFactory.getLogger(ItemCreationTask.class);
@@ -39,20 +47,28 @@ public class ItemCreationTask implements Callable<Map<String, ItemCreationTask.I
     /** Items to be created. */
     private final List<ByteUploadTask.ByteUploadResult> itemsToCreate;
 
-    /** API client to use for media creation. */
-    private final PhotosLibraryClient photosLibraryClient;
+    /** API to use for media creation. */
+    private final PhotosGateway gateway;
 
     /**
      * An {@link ItemCreationTask} calls {@link PhotosLibraryClient#batchCreateMediaItems(List)} with
      * a list of {@link NewMediaItem}s. Each {@link NewMediaItem} requires an upload token, file name
-     * and description which is read from the {@link ByteUploadTask}. The description is set to
-     * the current date and time.
+     * and description which is read from the {@link ByteUploadTask}. The description is the one of the
+     * entry, if the photo list gave one, and the current date and time otherwise.
      *
      * @param photosLibraryClient API client for media creation.
      * @param itemsToCreate The successful byte uploads to be created as media items.
      */
     public ItemCreationTask(PhotosLibraryClient photosLibraryClient, List<ByteUploadTask.ByteUploadResult> itemsToCreate) {
-        this.photosLibraryClient = photosLibraryClient;
+        this(PhotosGateway.of(photosLibraryClient), itemsToCreate);
+    }
+
+    /**
+     * @param gateway API for media creation.
+     * @param itemsToCreate The successful byte uploads to be created as media items.
+     */
+    public ItemCreationTask(PhotosGateway gateway, List<ByteUploadTask.ByteUploadResult> itemsToCreate) {
+        this.gateway = gateway;
         this.itemsToCreate = itemsToCreate;
     }
 
@@ -70,7 +86,7 @@ public class ItemCreationTask implements Callable<Map<String, ItemCreationTask.I
      * @return Status for each item created.
      */
     public Map<String, ItemCreationResult> call() {
-        LOG.info("Calling API to create items: " + itemsToCreate.size());
+        LOG.debug("Calling API to create items: {}", itemsToCreate.size());
 
         if (itemsToCreate.isEmpty()) {
             // No items to create.
@@ -86,26 +102,44 @@ public class ItemCreationTask implements Callable<Map<String, ItemCreationTask.I
         // - filename that will be shown to the user in Google Photos
         // - description that will be shown to the user in Google Photos
         Map<Album,List<NewMediaItem>> albumItemMap = new HashMap<>();
+        Map<String, AlbumEntry> entriesByToken = new HashMap<>();
         int itemCount = 0;
+        final String defaultDescription = "Created at " + new Date();
         for (ByteUploadTask.ByteUploadResult uploadResult : itemsToCreate) {
+            String description = uploadResult.entryBeingUploaded.description();
             NewMediaItem newMediaItem =
                     NewMediaItemFactory.createNewMediaItem(
                             uploadResult.uploadToken,
                             /* fileName= */ uploadResult.entryBeingUploaded.mediaPath().getName(),
-                            /* description=*/ "Created at " + new Date());
+                            /* description=*/ description != null ? description : defaultDescription);
             itemCount++;
+            entriesByToken.put(uploadResult.uploadToken, uploadResult.entryBeingUploaded);
             albumItemMap.computeIfAbsent(uploadResult.entryBeingUploaded.album(), k -> new ArrayList<>()).add(newMediaItem);
         }
 
         try {
-            LOG.info("Calling batchCreate for new items: " + itemCount);
+            LOG.debug("Calling batchCreate for new items: {}", itemCount);
 
             // Call the API to create media items.
             int resultsCount = 0;
             Map<Album, BatchCreateMediaItemsResponse> responses = new HashMap<>();
             for (Album album : albumItemMap.keySet()) {
-                LOG.info("> Creating " + albumItemMap.get(album).size() + " items for album: " + album.getTitle());
-                BatchCreateMediaItemsResponse response = photosLibraryClient.batchCreateMediaItems(album.getId(), albumItemMap.get(album));
+                LOG.debug("> Creating {} items for album: {}", albumItemMap.get(album).size(), album.getTitle());
+                ItemCreationEvent event = new ItemCreationEvent();
+                event.begin();
+                long start = System.nanoTime();
+                BatchCreateMediaItemsResponse response;
+                try {
+                    response = gateway.batchCreateMediaItems(album.getId(), albumItemMap.get(album));
+                } catch (RuntimeException e) {
+                    TraceRecorder.create(album.getTitle(), albumItemMap.get(album).size(), System.nanoTime() - start,
+                            null, e, entriesByToken);
+                    commitEvent(event, album, albumItemMap.get(album).size(), null, e);
+                    throw e;
+                }
+                TraceRecorder.create(album.getTitle(), albumItemMap.get(album).size(), System.nanoTime() - start,
+                        response, null, entriesByToken);
+                commitEvent(event, album, albumItemMap.get(album).size(), response, null);
                 resultsCount += response.getNewMediaItemResultsCount();
                 responses.put(album, response);
             }
@@ -117,14 +151,14 @@ public class ItemCreationTask implements Callable<Map<String, ItemCreationTask.I
                     if (status.getCode() == Code.OK_VALUE) {
                         // The item was successfully created in the user's library.
                         MediaItem createdItem = itemsResponse.getMediaItem();
-                        LOG.info("Item successfully created: " + createdItem.getFilename() + " in album: "+album.getTitle());
+                        ProgressLog.EVENTS.debug("created {} album={}", createdItem.getFilename(), album.getTitle());
                         results.put(
                                 itemsResponse.getUploadToken(),
                                 ItemCreationResult.createSuccessResult(
                                         itemsResponse.getUploadToken(), status, itemsResponse.getMediaItem()));
                     } else {
                         // The item could not be created.
-                        LOG.warn("Item not created. " + status.getMessage());
+                        LOG.warn("Item not created. {}", status.getMessage());
 
                         // Keep track of the failed item and its status.
                         results.put(
@@ -137,7 +171,7 @@ public class ItemCreationTask implements Callable<Map<String, ItemCreationTask.I
                     if (resultsCount != itemCount) {
                         for (ByteUploadTask.ByteUploadResult upload : itemsToCreate) {
                             if (!results.containsKey(upload.uploadToken)) {
-                                LOG.warn("Item not created. No status returned for upload token: " + upload.uploadToken);
+                                LOG.warn("Item not created. No status returned for upload token: {}", upload.uploadToken);
                                 results.put(
                                         upload.uploadToken,
                                         ItemCreationResult.createFailureResultWithThrowable(
@@ -154,7 +188,7 @@ public class ItemCreationTask implements Callable<Map<String, ItemCreationTask.I
             // handled by the application.
             // If this exception is of type APIException You can verify this by checking the status, its
             // code and whether it is retryable. See the documentation for Status for details.
-            LOG.error("API error while calling createMediaItems. " + exception.getMessage(), exception);
+            LOG.error("API error while calling createMediaItems. {}", exception.getMessage(), exception);
             // Mark all items that were in this request as failed.
             for (ByteUploadTask.ByteUploadResult byteUploadResult : itemsToCreate) {
                 results.put(
@@ -167,6 +201,23 @@ public class ItemCreationTask implements Callable<Map<String, ItemCreationTask.I
         return results;
     }
 
+    private static void commitEvent(ItemCreationEvent event, Album album, int items,
+                                    BatchCreateMediaItemsResponse response, Exception error) {
+        event.end();
+        if (!event.shouldCommit()) {
+            return;
+        }
+        event.album = album.getTitle();
+        event.items = items;
+        if (response != null) {
+            event.created = (int) response.getNewMediaItemResultsList().stream()
+                    .filter(result -> result.getStatus().getCode() == Code.OK_VALUE)
+                    .count();
+        }
+        event.outcome = error != null ? error.toString() : event.created == items ? "OK" : "PARTIAL";
+        event.commit();
+    }
+
     /**
      * Result of an {@link ItemCreationTask}. Successful results include a {@link MediaItem} and an OK
      * {@link Status}. Failed results either include a {@link Throwable} or a {@link Status} with a
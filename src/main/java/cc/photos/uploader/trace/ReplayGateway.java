@@ -0,0 +1,177 @@
+package cc.photos.uploader.trace;
+
+import cc.photos.uploader.gateway.PhotosGateway;
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.ApiExceptionFactory;
+import com.google.photos.library.v1.proto.BatchAddMediaItemsToAlbumResponse;
+import com.google.photos.library.v1.proto.BatchCreateMediaItemsResponse;
+import com.google.photos.library.v1.proto.NewMediaItem;
+import com.google.photos.library.v1.proto.NewMediaItemResult;
+import com.google.photos.library.v1.upload.UploadMediaItemRequest;
+import com.google.photos.library.v1.upload.UploadMediaItemResponse;
+import com.google.photos.types.proto.MediaItem;
+import com.google.rpc.Code;
+import com.google.rpc.Status;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-memory stand-in for the Library API that answers like the API did in a recorded {@link Trace}.
+ *
+ * <p>The uploads of a file take as long as they did when recorded, and fail the same way: a file uploaded
+ * again after a failure when recorded fails first and then succeeds when replayed. Once the recorded
+ * attempts are used, e.g. because the replayed run retries more, the last one is repeated. Batch creations
+ * and album additions take the recorded latency and outcome of the calls in the order they were made,
+ * starting over once all are used, since a replayed run may batch items differently; items that failed
+ * to be created when recorded fail again whichever call they are in.
+ *
+ * <p>Latencies are reproduced as recorded, whatever the number of uploads in parallel: the replay
+ * measures the pipeline around the calls, not how the calls share the network. Errors are reproduced as
+ * {@link ApiException}s with the recorded status code, so that a trace of the replay records the same
+ * statuses. Failures recorded as another exception than an API error are replayed as {@code UNKNOWN}.
+ *
+ * <p>The bytes of the files are not read: the recorded upload latency stands for the transfer. Reading files
+ * through {@link cc.photos.uploader.util.ChunkedFile}, the bandwidth limiter and the read-ahead pool are
+ * therefore not part of what a replay measures.
+ */
+public class ReplayGateway implements PhotosGateway {
+    private static final String TOKEN_PREFIX = "replay:";
+
+    /** Recorded upload attempts of each file, in the order they were made, not yet replayed. */
+    private final Map<String, Deque<Trace.Upload>> uploads = new HashMap<>();
+    private final Map<String, String> failedItems = new HashMap<>();
+    private final List<Trace.Call> creations;
+    private final List<Trace.Call> additions;
+    private final AtomicInteger nextCreation = new AtomicInteger();
+    private final AtomicInteger nextAddition = new AtomicInteger();
+    private final double speed;
+
+    /**
+     * @param trace Trace to replay.
+     * @param speed Factor by which recorded latencies are divided, 1 to replay in real time.
+     */
+    public ReplayGateway(Trace trace, double speed) {
+        trace.uploads().forEach(upload ->
+                uploads.computeIfAbsent(upload.file(), file -> new ArrayDeque<>()).add(upload));
+        trace.creations().forEach(call -> failedItems.putAll(call.failed()));
+        this.creations = trace.creations();
+        this.additions = trace.additions();
+        this.speed = speed;
+    }
+
+    @Override
+    public UploadMediaItemResponse uploadMediaItem(File mediaFile, UploadMediaItemRequest request) {
+        String file = mediaFile.getName();
+        Trace.Upload upload = nextUpload(file);
+        if (upload == null) {
+            return failure(replayedFailure("File not in the trace: " + file, Code.NOT_FOUND.name()));
+        }
+        if (!pause(upload.millis())) {
+            return failure(replayedFailure("Interrupted while replaying the upload of " + file, Code.CANCELLED.name()));
+        }
+        if (!"OK".equals(upload.status())) {
+            return failure(replayedFailure("Replayed failure of the upload of " + file, upload.status()));
+        }
+        return UploadMediaItemResponse.newBuilder().setUploadToken(TOKEN_PREFIX + file).build();
+    }
+
+    private Trace.Upload nextUpload(String file) {
+        Deque<Trace.Upload> attempts = uploads.get(file);
+        if (attempts == null) {
+            return null;
+        }
+        synchronized (attempts) {
+            // The last attempt is kept for the retries the recorded run did not make.
+            return attempts.size() > 1 ? attempts.poll() : attempts.peek();
+        }
+    }
+
+    @Override
+    public String startResumableUpload(String mimeType, long size) {
+        return "https://replay.invalid/upload";
+    }
+
+    @Override
+    public BatchCreateMediaItemsResponse batchCreateMediaItems(String albumId, List<NewMediaItem> newMediaItems) {
+        replayCall(creations, nextCreation);
+        BatchCreateMediaItemsResponse.Builder response = BatchCreateMediaItemsResponse.newBuilder();
+        for (NewMediaItem newMediaItem : newMediaItems) {
+            String token = newMediaItem.getSimpleMediaItem().getUploadToken();
+            String file = token.substring(TOKEN_PREFIX.length());
+            String failure = failedItems.get(file);
+            NewMediaItemResult.Builder result = NewMediaItemResult.newBuilder().setUploadToken(token);
+            if (failure == null) {
+                result.setStatus(Status.newBuilder().setCode(Code.OK_VALUE).build())
+                        .setMediaItem(MediaItem.newBuilder()
+                                .setId(TOKEN_PREFIX + file)
+                                .setFilename(newMediaItem.getSimpleMediaItem().getFileName())
+                                .build());
+            } else {
+                result.setStatus(Status.newBuilder().setCode(code(failure)).setMessage("Replayed failure").build());
+            }
+            response.addNewMediaItemResults(result.build());
+        }
+        return response.build();
+    }
+
+    @Override
+    public BatchAddMediaItemsToAlbumResponse batchAddMediaItemsToAlbum(String albumId, List<String> mediaItemIds) {
+        replayCall(additions, nextAddition);
+        return BatchAddMediaItemsToAlbumResponse.getDefaultInstance();
+    }
+
+    private void replayCall(List<Trace.Call> calls, AtomicInteger next) {
+        if (calls.isEmpty()) {
+            return;
+        }
+        Trace.Call call = calls.get(next.getAndIncrement() % calls.size());
+        if (!pause(call.millis())) {
+            throw replayedFailure("Interrupted while replaying a call.", Code.CANCELLED.name());
+        }
+        if (!"OK".equals(call.status())) {
+            throw replayedFailure("Replayed failure of a call.", call.status());
+        }
+    }
+
+    private boolean pause(long millis) {
+        try {
+            TimeUnit.MICROSECONDS.sleep((long) (millis * 1000 / speed));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static int code(String status) {
+        try {
+            return Code.valueOf(status).getNumber();
+        } catch (IllegalArgumentException e) {
+            return Code.UNKNOWN.getNumber();
+        }
+    }
+
+    private static ApiException replayedFailure(String message, String status) {
+        io.grpc.Status.Code code;
+        try {
+            code = io.grpc.Status.Code.valueOf(status);
+        } catch (IllegalArgumentException e) {
+            code = io.grpc.Status.Code.UNKNOWN;
+        }
+        return ApiExceptionFactory.createException(message, null, GrpcStatusCode.of(code), false);
+    }
+
+    private static UploadMediaItemResponse failure(ApiException cause) {
+        return UploadMediaItemResponse.newBuilder()
+                .setError(UploadMediaItemResponse.Error.newBuilder().setCause(cause).build())
+                .build();
+    }
+}
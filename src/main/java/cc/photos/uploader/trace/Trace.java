@@ -0,0 +1,102 @@
+package cc.photos.uploader.trace;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A trace written by {@link TraceRecorder}.
+ *
+ * @param uploads Byte uploads, in the order they finished.
+ * @param creations Batch creations, in the order they were made.
+ * @param additions Album additions, in the order they were made.
+ * @param runMillis Duration of the recorded run, zero if it did not finish.
+ */
+public record Trace(List<Upload> uploads, List<Call> creations, List<Call> additions, long runMillis) {
+
+    /**
+     * Reads a trace. Lines of unknown types are ignored.
+     *
+     * @param file Trace file.
+     * @return The trace.
+     * @throws IOException If the file cannot be read or a line is not JSON.
+     */
+    public static Trace read(Path file) throws IOException {
+        List<Upload> uploads = new ArrayList<>();
+        List<Call> creations = new ArrayList<>();
+        List<Call> additions = new ArrayList<>();
+        long runMillis = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank()) {
+                    continue;
+                }
+                JsonObject record;
+                try {
+                    record = JsonParser.parseString(line).getAsJsonObject();
+                } catch (JsonParseException | IllegalStateException e) {
+                    throw new IOException("Invalid trace line " + lineNumber + " in " + file + ": " + e.getMessage(), e);
+                }
+                switch (record.get("type").getAsString()) {
+                    case "upload" -> uploads.add(new Upload(
+                            record.get("file").getAsString(),
+                            record.get("album").getAsString(),
+                            record.get("size").getAsLong(),
+                            record.get("millis").getAsLong(),
+                            record.get("status").getAsString()));
+                    case "create" -> creations.add(call(record));
+                    case "add" -> additions.add(call(record));
+                    case "run" -> runMillis = record.get("millis").getAsLong();
+                    default -> {
+                        // Written by a later version.
+                    }
+                }
+            }
+        }
+        return new Trace(uploads, creations, additions, runMillis);
+    }
+
+    private static Call call(JsonObject record) {
+        Map<String, String> failed = new HashMap<>();
+        if (record.has("failed")) {
+            for (Map.Entry<String, JsonElement> item : record.getAsJsonObject("failed").entrySet()) {
+                failed.put(item.getKey(), item.getValue().getAsString());
+            }
+        }
+        return new Call(record.get("millis").getAsLong(), record.get("status").getAsString(), failed);
+    }
+
+    /**
+     * A byte upload.
+     *
+     * @param file Hash of the path of the file, with its extension.
+     * @param album Hash of the title of its album.
+     * @param size Size of the file in bytes.
+     * @param millis Duration of the upload.
+     * @param status {@code OK} or the error of the upload.
+     */
+    public record Upload(String file, String album, long size, long millis, String status) {}
+
+    /**
+     * A batch creation or album addition.
+     *
+     * @param millis Duration of the call.
+     * @param status {@code OK} or the error of the whole call.
+     * @param failed Status of the items that failed, by file.
+     */
+    public record Call(long millis, String status, Map<String, String> failed) {}
+}
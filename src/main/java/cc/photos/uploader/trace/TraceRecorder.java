@@ -0,0 +1,208 @@
+package cc.photos.uploader.trace;
+
+import cc.photos.uploader.model.AlbumEntry;
+import com.google.api.gax.rpc.ApiException;
+import com.google.common.hash.Hashing;
+import com.google.gson.JsonObject;
+import com.google.photos.library.v1.proto.BatchCreateMediaItemsResponse;
+import com.google.photos.library.v1.proto.NewMediaItemResult;
+import com.google.rpc.Code;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records a compact trace of a run, one JSON object per line, to be replayed offline by
+ * {@link TraceReplayer}.
+ *
+ * <p>Each line is one API call: a byte upload ({@code "type":"upload"}) with the size and media type of
+ * the file, its chunks and retries; a batch creation ({@code "create"}) with the items that failed; or
+ * an album addition ({@code "add"}). All carry the call latency in milliseconds and its status, which is
+ * {@code OK}, the gRPC code of an API error, or the class of any other error. A last {@code "run"} line
+ * holds the duration of the whole run.
+ *
+ * <p>Files and albums are identified by a hash of their path and title, so a trace can be shared without
+ * revealing the library. The extension of files is kept since it decides their media type.
+ *
+ * <p>Like the flight recorder, recording is process wide: the tasks report their calls through the static
+ * methods, which do nothing unless a recorder was {@link #start started}.
+ */
+public final class TraceRecorder implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(TraceRecorder.class);
+
+    private static volatile TraceRecorder active;
+
+    private final BufferedWriter writer;
+    private final long startNanos;
+    private boolean closed;
+
+    private TraceRecorder(BufferedWriter writer) {
+        this.writer = writer;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Starts recording the calls of this process.
+     *
+     * @param file Trace file, replaced if it exists.
+     * @return The recorder, to close at the end of the run.
+     */
+    public static TraceRecorder start(Path file) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        TraceRecorder recorder = new TraceRecorder(Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+        active = recorder;
+        LOG.info("Recording a trace of the run to {}", file);
+        return recorder;
+    }
+
+    /**
+     * Records a byte upload.
+     *
+     * @param entry Entry uploaded.
+     * @param mimeType Media type of the file, may be null.
+     * @param chunkSize Chunk size of the upload.
+     * @param chunks Number of chunks read.
+     * @param retries Number of chunks sent again.
+     * @param resumed Whether the upload continued a resumable session of an earlier run.
+     * @param nanos Duration of the upload.
+     * @param error Error of a failed upload, null if it succeeded.
+     */
+    public static void upload(AlbumEntry entry, String mimeType, int chunkSize, int chunks, int retries,
+                              boolean resumed, long nanos, Throwable error) {
+        TraceRecorder recorder = active;
+        if (recorder == null) {
+            return;
+        }
+        JsonObject line = recorder.line("upload", nanos, error);
+        line.addProperty("file", fileKey(entry.mediaPath()));
+        line.addProperty("album", albumKey(entry.album().getTitle()));
+        line.addProperty("size", entry.mediaPath().length());
+        line.addProperty("mime", mimeType);
+        line.addProperty("chunkSize", chunkSize);
+        line.addProperty("chunks", chunks);
+        line.addProperty("retries", retries);
+        line.addProperty("resumed", resumed);
+        recorder.write(line);
+    }
+
+    /**
+     * Records a batch creation.
+     *
+     * @param albumTitle Album the items were created in.
+     * @param items Number of items in the call.
+     * @param nanos Duration of the call.
+     * @param response Response of the call, null if it failed.
+     * @param error Error of a failed call, null if it succeeded.
+     * @param entriesByToken Entries of the call by upload token.
+     */
+    public static void create(String albumTitle, int items, long nanos, BatchCreateMediaItemsResponse response,
+                              Throwable error, Map<String, AlbumEntry> entriesByToken) {
+        TraceRecorder recorder = active;
+        if (recorder == null) {
+            return;
+        }
+        JsonObject line = recorder.line("create", nanos, error);
+        line.addProperty("album", albumKey(albumTitle));
+        line.addProperty("items", items);
+        if (response != null) {
+            JsonObject failed = new JsonObject();
+            for (NewMediaItemResult result : response.getNewMediaItemResultsList()) {
+                AlbumEntry entry = entriesByToken.get(result.getUploadToken());
+                if (result.getStatus().getCode() != Code.OK_VALUE && entry != null) {
+                    Code code = Code.forNumber(result.getStatus().getCode());
+                    failed.addProperty(fileKey(entry.mediaPath()), code != null ? code.name() : "UNKNOWN");
+                }
+            }
+            if (failed.size() > 0) {
+                line.add("failed", failed);
+            }
+        }
+        recorder.write(line);
+    }
+
+    /**
+     * Records an addition of existing media items to an album.
+     *
+     * @param items Number of items in the call.
+     * @param nanos Duration of the call.
+     * @param error Error of a failed call, null if it succeeded.
+     */
+    public static void add(int items, long nanos, Throwable error) {
+        TraceRecorder recorder = active;
+        if (recorder == null) {
+            return;
+        }
+        JsonObject line = recorder.line("add", nanos, error);
+        line.addProperty("items", items);
+        recorder.write(line);
+    }
+
+    static String fileKey(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return String.format("%016x", Hashing.murmur3_128().hashString(file.getAbsolutePath(), StandardCharsets.UTF_8)
+                .asLong()) + (dot > 0 ? name.substring(dot) : "");
+    }
+
+    static String albumKey(String album) {
+        return album == null ? "" : Hashing.murmur3_32_fixed().hashString(album, StandardCharsets.UTF_8).toString();
+    }
+
+    static String status(Throwable error) {
+        if (error == null) {
+            return "OK";
+        }
+        if (error instanceof ApiException apiException) {
+            return apiException.getStatusCode().getCode().name();
+        }
+        return error.getClass().getSimpleName();
+    }
+
+    private JsonObject line(String type, long nanos, Throwable error) {
+        JsonObject line = new JsonObject();
+        line.addProperty("type", type);
+        line.addProperty("at", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos - nanos));
+        line.addProperty("millis", TimeUnit.NANOSECONDS.toMillis(nanos));
+        line.addProperty("status", status(error));
+        return line;
+    }
+
+    private synchronized void write(JsonObject line) {
+        try {
+            writer.write(line.toString());
+            writer.newLine();
+            // A trace of a run that crashed is worth as much as any other.
+            writer.flush();
+        } catch (IOException e) {
+            LOG.warn("Unable to write to the trace: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Records the duration of the run and stops recording. Closing again does nothing.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        active = null;
+        JsonObject line = new JsonObject();
+        line.addProperty("type", "run");
+        line.addProperty("millis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        write(line);
+        writer.close();
+    }
+}
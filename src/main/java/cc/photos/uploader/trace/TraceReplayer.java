@@ -0,0 +1,106 @@
+package cc.photos.uploader.trace;
+
+import cc.photos.uploader.UploadService;
+import cc.photos.uploader.model.AlbumEntry;
+import cc.photos.uploader.util.Constants;
+import com.google.common.base.Stopwatch;
+import com.google.photos.types.proto.Album;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Replays a recorded {@link Trace} through {@link UploadService} against a {@link ReplayGateway}, to
+ * measure the effect of pipeline changes on a real workload offline.
+ *
+ * <p>A sparse file of the recorded size is created for each uploaded file, in a temporary directory
+ * deleted afterwards. Each starts with its own name so that no two files have the same content. The
+ * upload service keeps its state in that directory too, so that a replay neither reads nor changes the
+ * state of real runs. It starts from a copy of the tuning profile of the environment, to upload with the
+ * same settings as a real run.
+ */
+public class TraceReplayer {
+    private static final Logger LOG = LoggerFactory.getLogger(TraceReplayer.class);
+
+    private final Path traceFile;
+    private final double speed;
+
+    /**
+     * @param traceFile Trace to replay.
+     * @param speed Factor by which recorded latencies are divided, 1 to replay in real time.
+     */
+    public TraceReplayer(Path traceFile, double speed) {
+        this.traceFile = traceFile;
+        this.speed = speed;
+    }
+
+    /**
+     * Replays the trace and logs how long it took, next to how long the recorded run took.
+     */
+    public void replay() throws Exception {
+        Trace trace = Trace.read(traceFile);
+        LOG.info("Replaying {} uploads, {} batch creations and {} album additions from {} at {}x",
+                trace.uploads().size(), trace.creations().size(), trace.additions().size(), traceFile, speed);
+        Path directory = Files.createTempDirectory("uploader-replay");
+        try {
+            List<AlbumEntry> entries = createFiles(trace, directory);
+            UploadService.StatePaths statePaths = UploadService.StatePaths.under(directory.resolve("state"));
+            Path tuningProfile = Paths.get(Constants.UPLOADER_TUNING_PROFILE);
+            if (Files.exists(tuningProfile)) {
+                Files.createDirectories(statePaths.stateDir().toPath());
+                Files.copy(tuningProfile, statePaths.tuningProfile());
+            }
+            Stopwatch timer = Stopwatch.createStarted();
+            try (UploadService uploadService = new UploadService(new ReplayGateway(trace, speed), null, statePaths)) {
+                uploadService.addEntriesToAlbums(entries);
+                uploadService.printState();
+            }
+            LOG.info("Replayed {} uploads in {}, the recorded run took {} ({} at {}x).", entries.size(), timer.stop(),
+                    Duration.ofMillis(trace.runMillis()), Duration.ofMillis((long) (trace.runMillis() / speed)), speed);
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    private static List<AlbumEntry> createFiles(Trace trace, Path directory) throws IOException {
+        Map<String, Trace.Upload> uploads = new LinkedHashMap<>();
+        trace.uploads().forEach(upload -> uploads.putIfAbsent(upload.file(), upload));
+        Map<String, Album> albums = new HashMap<>();
+        List<AlbumEntry> entries = new ArrayList<>(uploads.size());
+        for (Trace.Upload upload : uploads.values()) {
+            File file = directory.resolve(upload.file()).toFile();
+            try (RandomAccessFile data = new RandomAccessFile(file, "rw")) {
+                byte[] name = upload.file().getBytes(StandardCharsets.UTF_8);
+                data.write(name, 0, (int) Math.min(name.length, upload.size()));
+                data.setLength(upload.size());
+            }
+            Album album = albums.computeIfAbsent(upload.album(),
+                    key -> Album.newBuilder().setId("replay:" + key).setTitle(key).build());
+            entries.add(new AlbumEntry(album, file));
+        }
+        return entries;
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package cc.photos.uploader.util;
+
+import java.io.InterruptedIOException;
+import java.time.LocalTime;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A token bucket shared by all upload workers that caps the total number of bytes read for upload
+ * per second.
+ *
+ * <p>Readers acquire bandwidth in slices of at most {@link #SLICE_SIZE} bytes through a fair lock,
+ * so concurrent uploads take turns in arrival order and share the cap evenly instead of the first
+ * large file starving the others.
+ *
+ * <p>The cap follows a {@link BandwidthSchedule} and can be overridden at runtime through JMX, see
+ * {@link BandwidthLimiterMBean}.
+ */
+public class BandwidthLimiter implements BandwidthLimiterMBean {
+
+    /** Largest number of bytes granted to a reader at a time. */
+    public static final int SLICE_SIZE = 64 * 1024;
+
+    /** Smallest chunk size handed to the client library while a cap is in effect. */
+    private static final int MIN_CHUNK_SIZE = 1024 * 1024;
+
+    private final BandwidthSchedule schedule;
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicLong throttledNanos = new AtomicLong();
+
+    private volatile long overrideBytesPerSecond = -1;
+    private long availableBytes;
+    private long lastRefillNanos;
+
+    public BandwidthLimiter(BandwidthSchedule schedule) {
+        this.schedule = schedule;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Blocks until the given number of bytes may be read.
+     *
+     * @param bytes Number of bytes about to be read, at most {@link #SLICE_SIZE}.
+     * @throws InterruptedIOException If interrupted while waiting.
+     */
+    public void acquire(int bytes) throws InterruptedIOException {
+        totalBytes.addAndGet(bytes);
+        long bytesPerSecond = getBytesPerSecond();
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        try {
+            lock.lockInterruptibly();
+            try {
+                refill(bytesPerSecond);
+                availableBytes -= bytes;
+                if (availableBytes < 0) {
+                    // Sleep while holding the lock, the fair lock queues the other readers behind this one.
+                    long waitNanos = TimeUnit.SECONDS.toNanos(-availableBytes) / bytesPerSecond;
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                    throttledNanos.addAndGet(waitNanos);
+                }
+            } finally {
+                lock.unlock();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for upload bandwidth.");
+        }
+    }
+
+    /**
+     * Chunk size to use for an upload starting now. While a cap is in effect, chunks are limited to
+     * about one second of bandwidth so that the client library does not send a long burst at full
+     * link speed after each throttled read.
+     *
+     * @param preferredChunkSize Chunk size used when there is no cap.
+     * @return The chunk size to use.
+     */
+    public int chunkSizeFor(int preferredChunkSize) {
+        long bytesPerSecond = getBytesPerSecond();
+        if (bytesPerSecond <= 0) {
+            return preferredChunkSize;
+        }
+        return (int) Math.min(preferredChunkSize, Math.max(MIN_CHUNK_SIZE, bytesPerSecond));
+    }
+
+    private void refill(long bytesPerSecond) {
+        long now = System.nanoTime();
+        long refilled = (now - lastRefillNanos) * bytesPerSecond / TimeUnit.SECONDS.toNanos(1);
+        if (refilled > 0) {
+            // Allow bursts of up to one second worth of bytes.
+            availableBytes = Math.min(bytesPerSecond, availableBytes + refilled);
+            lastRefillNanos = now;
+        }
+    }
+
+    @Override
+    public long getBytesPerSecond() {
+        long override = overrideBytesPerSecond;
+        return override >= 0 ? override : schedule.bytesPerSecondAt(LocalTime.now());
+    }
+
+    @Override
+    public void setBytesPerSecond(long bytesPerSecond) {
+        this.overrideBytesPerSecond = Math.max(0, bytesPerSecond);
+    }
+
+    @Override
+    public void resetToSchedule() {
+        this.overrideBytesPerSecond = -1;
+    }
+
+    @Override
+    public long getTotalBytes() {
+        return totalBytes.get();
+    }
+
+    @Override
+    public long getThrottledMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(throttledNanos.get());
+    }
+}
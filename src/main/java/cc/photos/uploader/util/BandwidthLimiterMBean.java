@@ -0,0 +1,20 @@
+package cc.photos.uploader.util;
+
+/** Management interface of {@link BandwidthLimiter}, used to change the cap while a run is in progress. */
+public interface BandwidthLimiterMBean {
+
+    /** Cap currently in effect in bytes per second, zero if unlimited. */
+    long getBytesPerSecond();
+
+    /** Overrides the schedule with a fixed cap in bytes per second, zero for unlimited. */
+    void setBytesPerSecond(long bytesPerSecond);
+
+    /** Drops any override and returns to the configured schedule. */
+    void resetToSchedule();
+
+    /** Total number of bytes that passed through the limiter. */
+    long getTotalBytes();
+
+    /** Total time readers spent waiting for bandwidth, in milliseconds. */
+    long getThrottledMillis();
+}
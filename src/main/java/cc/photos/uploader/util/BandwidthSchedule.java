@@ -0,0 +1,85 @@
+package cc.photos.uploader.util;
+
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bandwidth caps by time of day.
+ *
+ * <p>A schedule is written as a comma separated list of windows of the form {@code HH:mm-HH:mm=bytesPerSecond},
+ * for example {@code 08:00-18:00=1048576,22:00-06:00=0}. A window whose end is before its start spans
+ * midnight. Outside of every window the default cap applies. A cap of zero means unlimited.
+ */
+public class BandwidthSchedule {
+    private final long defaultBytesPerSecond;
+    private final List<Window> windows;
+
+    public BandwidthSchedule(long defaultBytesPerSecond, List<Window> windows) {
+        this.defaultBytesPerSecond = defaultBytesPerSecond;
+        this.windows = List.copyOf(windows);
+    }
+
+    /**
+     * Parses a schedule.
+     *
+     * @param defaultBytesPerSecond Cap outside of every window.
+     * @param spec Schedule specification, may be empty.
+     * @return The parsed schedule.
+     * @throws IllegalArgumentException If the specification is malformed.
+     */
+    public static BandwidthSchedule parse(long defaultBytesPerSecond, String spec) {
+        List<Window> windows = new ArrayList<>();
+        for (String window : spec.split(",")) {
+            if (window.isBlank()) {
+                continue;
+            }
+            String[] rangeAndRate = window.trim().split("=");
+            String[] range = rangeAndRate[0].split("-");
+            if (rangeAndRate.length != 2 || range.length != 2) {
+                throw new IllegalArgumentException("Invalid bandwidth schedule window: " + window);
+            }
+            windows.add(new Window(
+                    LocalTime.parse(range[0].trim()),
+                    LocalTime.parse(range[1].trim()),
+                    Long.parseLong(rangeAndRate[1].trim())));
+        }
+        return new BandwidthSchedule(defaultBytesPerSecond, windows);
+    }
+
+    /**
+     * Cap in effect at the given time of day.
+     *
+     * @param time Time of day.
+     * @return Bytes per second, or zero if unlimited.
+     */
+    public long bytesPerSecondAt(LocalTime time) {
+        for (Window window : windows) {
+            if (window.contains(time)) {
+                return window.bytesPerSecond();
+            }
+        }
+        return defaultBytesPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return "BandwidthSchedule{default=" + defaultBytesPerSecond + ", windows=" + windows + "}";
+    }
+
+    /**
+     * A time of day window with its cap.
+     *
+     * @param start Start of the window, inclusive.
+     * @param end End of the window, exclusive.
+     * @param bytesPerSecond Cap during the window, zero for unlimited.
+     */
+    public record Window(LocalTime start, LocalTime end, long bytesPerSecond) {
+        boolean contains(LocalTime time) {
+            if (start.isBefore(end)) {
+                return !time.isBefore(start) && time.isBefore(end);
+            }
+            return !time.isBefore(start) || time.isBefore(end);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package cc.photos.uploader.util;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Optional;
+
+/**
+ * A BK-tree of 64-bit hashes under the Hamming distance, to find the closest hash within a distance
+ * without comparing against every hash in the tree.
+ *
+ * <p>Children of a node are indexed by their distance to it; by the triangle inequality, a search for
+ * hashes within {@code r} of {@code h} only descends into the children whose index is within {@code r}
+ * of the distance between {@code h} and the node. Not thread-safe.
+ *
+ * @param <T> Type of the values stored with the hashes.
+ */
+public class BkTree<T> {
+    private Node<T> root;
+    private int size;
+
+    /**
+     * Adds a hash.
+     *
+     * @param hash The hash.
+     * @param value Value returned when the hash matches a search.
+     */
+    public void add(long hash, T value) {
+        size++;
+        if (root == null) {
+            root = new Node<>(hash, value);
+            return;
+        }
+        Node<T> node = root;
+        while (true) {
+            int distance = PerceptualHash.distance(hash, node.hash);
+            Node<T> child = node.child(distance);
+            if (child == null) {
+                node.setChild(distance, new Node<>(hash, value));
+                return;
+            }
+            node = child;
+        }
+    }
+
+    /**
+     * Finds the hash closest to the given one, if it is within the given distance.
+     *
+     * @param hash The hash to look up.
+     * @param maxDistance Largest Hamming distance of a match.
+     * @return The closest match, empty if none is within the distance.
+     */
+    public Optional<Match<T>> nearest(long hash, int maxDistance) {
+        if (root == null) {
+            return Optional.empty();
+        }
+        Node<T> best = null;
+        int bestDistance = maxDistance;
+        Deque<Node<T>> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Node<T> node = pending.pop();
+            int distance = PerceptualHash.distance(hash, node.hash);
+            if (distance <= bestDistance) {
+                best = node;
+                bestDistance = distance;
+                if (distance == 0) {
+                    break;
+                }
+            }
+            int from = Math.max(0, distance - bestDistance);
+            int to = Math.min(node.children.length - 1, distance + bestDistance);
+            for (int i = from; i <= to; i++) {
+                if (node.children[i] != null) {
+                    pending.push(node.children[i]);
+                }
+            }
+        }
+        return best == null ? Optional.empty() : Optional.of(new Match<>(best.value, bestDistance));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * A hash found by {@link #nearest}.
+     *
+     * @param value Value stored with the hash.
+     * @param distance Hamming distance to the hash looked up.
+     */
+    public record Match<T>(T value, int distance) {}
+
+    private static final class Node<T> {
+        private static final Node<?>[] NO_CHILDREN = new Node<?>[0];
+
+        final long hash;
+        final T value;
+        /** Children by distance, grown as needed up to 65 entries. */
+        Node<T>[] children;
+
+        @SuppressWarnings("unchecked")
+        Node(long hash, T value) {
+            this.hash = hash;
+            this.value = value;
+            this.children = (Node<T>[]) NO_CHILDREN;
+        }
+
+        Node<T> child(int distance) {
+            return distance < children.length ? children[distance] : null;
+        }
+
+        void setChild(int distance, Node<T> child) {
+            if (distance >= children.length) {
+                children = Arrays.copyOf(children, distance + 1);
+            }
+            children[distance] = child;
+        }
+    }
+}
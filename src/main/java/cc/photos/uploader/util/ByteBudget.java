@@ -0,0 +1,83 @@
+package cc.photos.uploader.util;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control on the memory held by uploads in flight.
+ *
+ * <p>Each upload holds a chunk of its file in memory while it is sent, so it costs the smaller of its
+ * chunk size and its size. An upload acquires its cost before it starts and releases it when it ends:
+ * small files pack in densely while large files wait for headroom. Waiting uploads are admitted in
+ * arrival order, so a large file is never overtaken indefinitely by smaller ones. An upload costing
+ * more than the whole budget is admitted alone.
+ *
+ * <p>The budget is counted in units of {@link #UNIT} bytes so that budgets larger than 2 GB fit in a
+ * {@link Semaphore}.
+ */
+public class ByteBudget {
+
+    /** Granularity of the budget in bytes. */
+    public static final int UNIT = 1024;
+
+    private final long budgetBytes;
+    private final Semaphore units;
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitedNanos = new AtomicLong();
+
+    /**
+     * @param budgetBytes Most bytes held by uploads in flight.
+     */
+    public ByteBudget(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        this.units = new Semaphore(toUnits(budgetBytes), true);
+    }
+
+    /**
+     * Blocks until the cost of an upload fits in the budget, in arrival order.
+     *
+     * @param bytes Cost of the upload.
+     * @return What to {@link #release} once the upload ended.
+     * @throws InterruptedException If interrupted while waiting, nothing is then acquired.
+     */
+    public int acquire(long bytes) throws InterruptedException {
+        int count = toUnits(Math.max(1, Math.min(bytes, budgetBytes)));
+        // The timed variant, unlike tryAcquire(int), does not barge ahead of uploads already waiting.
+        if (!units.tryAcquire(count, 0, TimeUnit.NANOSECONDS)) {
+            long start = System.nanoTime();
+            units.acquire(count);
+            waits.incrementAndGet();
+            waitedNanos.addAndGet(System.nanoTime() - start);
+        }
+        return count;
+    }
+
+    /**
+     * Gives back the cost of an upload that ended.
+     *
+     * @param acquired Value returned by {@link #acquire}.
+     */
+    public void release(int acquired) {
+        units.release(acquired);
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    /** Bytes currently held by uploads in flight. */
+    public long getUsedBytes() {
+        return budgetBytes - (long) units.availablePermits() * UNIT;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("budget=%d MB waits=%d waited=%ds", budgetBytes / (1024 * 1024), waits.get(),
+                TimeUnit.NANOSECONDS.toSeconds(waitedNanos.get()));
+    }
+
+    private static int toUnits(long bytes) {
+        return (int) Math.min(Integer.MAX_VALUE, (bytes + UNIT - 1) / UNIT);
+    }
+}
@@ -0,0 +1,165 @@
+package cc.photos.uploader.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Optional;
+import java.util.function.LongConsumer;
+
+/**
+ * A read-only {@link RandomAccessFile} that reports the offset of every chunk read by the upload
+ * client.
+ *
+ * <p>The client library reads the next chunk only once the previous chunk has been acknowledged by
+ * the API, so the offset at which a read starts is the number of bytes committed so far.
+ *
+ * <p>When a {@link BandwidthLimiter} is given, reads are split into slices that each wait for their
+ * share of the bandwidth, which paces the upload at the stream level.
+ *
+ * <p>When a {@link ReadAheadPool} is given, the first bytes of the file are read from the pool if
+ * they were prefetched, and the rest from the file. Reads are then always filled completely, so that
+ * the client library does not take a read ending at the edge of the prefetched bytes for the end of
+ * the file.
+ *
+ * <p>It also counts the chunks read and the times the client went back to send bytes again after a
+ * failed chunk, for the flight recorder.
+ */
+public class ChunkedFile extends RandomAccessFile {
+    private final BandwidthLimiter limiter;
+    private final ReadAheadPool readAheadPool;
+    private ReadAheadPool.Prefetched prefetched;
+    private LongConsumer chunkListener = offset -> {};
+    private long lastReportedOffset = 0;
+    private long lastReadEnd = 0;
+    private int chunkCount;
+    private int retryCount;
+
+    public ChunkedFile(File file) throws IOException {
+        this(file, null);
+    }
+
+    /**
+     * @param file File to read.
+     * @param limiter Limiter shared by all uploads, may be null.
+     */
+    public ChunkedFile(File file, BandwidthLimiter limiter) throws IOException {
+        this(file, limiter, null);
+    }
+
+    /**
+     * @param file File to read.
+     * @param limiter Limiter shared by all uploads, may be null.
+     * @param readAheadPool Pool holding the first bytes of the file if they were prefetched, may be null.
+     */
+    public ChunkedFile(File file, BandwidthLimiter limiter, ReadAheadPool readAheadPool) throws IOException {
+        super(file, "r");
+        this.limiter = limiter;
+        this.readAheadPool = readAheadPool;
+        if (readAheadPool != null) {
+            Optional<ReadAheadPool.Prefetched> head = readAheadPool.take(file);
+            this.prefetched = head.orElse(null);
+        }
+    }
+
+    /**
+     * Sets the listener that is notified with the committed offset before each chunk is read.
+     *
+     * @param listener Receives the offset of the chunk about to be read.
+     */
+    public void onChunkStart(LongConsumer listener) {
+        this.chunkListener = listener;
+    }
+
+    /**
+     * Number of chunks read, including those read again for a retry.
+     */
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * Number of times a read started before the end of the previous one, i.e. a chunk was sent again.
+     */
+    public int getRetryCount() {
+        return retryCount;
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        long offset = getFilePointer();
+        reportOffset(offset);
+        int read;
+        if (limiter != null) {
+            read = readLimited(b, off, len);
+        } else if (prefetched != null) {
+            read = fill(b, off, len);
+        } else {
+            read = super.read(b, off, len);
+        }
+        if (read > 0) {
+            chunkCount++;
+            if (offset < lastReadEnd) {
+                retryCount++;
+            }
+            lastReadEnd = offset + read;
+        }
+        return read;
+    }
+
+    private int readLimited(byte[] b, int off, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int slice = Math.min(len - total, BandwidthLimiter.SLICE_SIZE);
+            limiter.acquire(slice);
+            int read = fill(b, off + total, slice);
+            if (read < 0) {
+                return total == 0 ? -1 : total;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private int fill(byte[] b, int off, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int read = readSome(b, off + total, len - total);
+            if (read < 0) {
+                return total == 0 ? -1 : total;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private int readSome(byte[] b, int off, int len) throws IOException {
+        long position = getFilePointer();
+        if (prefetched == null || position >= prefetched.length()) {
+            return super.read(b, off, len);
+        }
+        int read = prefetched.read(position, b, off, (int) Math.min(len, prefetched.length() - position));
+        seek(position + read);
+        return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (prefetched != null) {
+            readAheadPool.release(prefetched);
+            prefetched = null;
+        }
+        super.close();
+    }
+
+    private void reportOffset(long offset) {
+        if (offset != lastReportedOffset) {
+            lastReportedOffset = offset;
+            chunkListener.accept(offset);
+        }
+    }
+}
@@ -19,4 +19,81 @@ public class Constants {
 
     private static final String ENV_UPLOADER_VERBOSE = "UPLOADER_VERBOSE";
     public static final String UPLOADER_VERBOSE = getenv().getOrDefault(ENV_UPLOADER_VERBOSE, "false");
+
+    private static final String ENV_UPLOADER_STATE_DIR = "UPLOADER_STATE_DIR";
+    private static final String DEFAULT_UPLOADER_STATE_DIR = getenv("HOME") + "/.uploader-state";
+    public static final String UPLOADER_STATE_DIR = getenv().getOrDefault(ENV_UPLOADER_STATE_DIR, DEFAULT_UPLOADER_STATE_DIR);
+
+    private static final String ENV_UPLOADER_RESUMABLE_THRESHOLD = "UPLOADER_RESUMABLE_THRESHOLD";
+    private static final String DEFAULT_RESUMABLE_THRESHOLD = String.valueOf(100L * 1024 * 1024); // 100 MB
+    public static final long UPLOADER_RESUMABLE_THRESHOLD = Long.parseLong(getenv().getOrDefault(ENV_UPLOADER_RESUMABLE_THRESHOLD, DEFAULT_RESUMABLE_THRESHOLD));
+
+    private static final String ENV_UPLOADER_RESUMABLE_VALIDITY_HOURS = "UPLOADER_RESUMABLE_VALIDITY_HOURS";
+    public static final long UPLOADER_RESUMABLE_VALIDITY_HOURS = Long.parseLong(getenv().getOrDefault(ENV_UPLOADER_RESUMABLE_VALIDITY_HOURS, "24"));
+
+    private static final String ENV_UPLOADER_BANDWIDTH_LIMIT = "UPLOADER_BANDWIDTH_LIMIT";
+    public static final long UPLOADER_BANDWIDTH_LIMIT = Long.parseLong(getenv().getOrDefault(ENV_UPLOADER_BANDWIDTH_LIMIT, "0"));
+
+    private static final String ENV_UPLOADER_BANDWIDTH_SCHEDULE = "UPLOADER_BANDWIDTH_SCHEDULE";
+    public static final String UPLOADER_BANDWIDTH_SCHEDULE = getenv().getOrDefault(ENV_UPLOADER_BANDWIDTH_SCHEDULE, "");
+
+    public static final String ENV_UPLOADER_LEDGER_DIR = "UPLOADER_LEDGER_DIR";
+    public static final String UPLOADER_LEDGER_DIR = getenv().getOrDefault(ENV_UPLOADER_LEDGER_DIR, "");
+
+    private static final String ENV_UPLOADER_NODE_ID = "UPLOADER_NODE_ID";
+    public static final String UPLOADER_NODE_ID = getenv().getOrDefault(ENV_UPLOADER_NODE_ID, defaultNodeId());
+
+    private static final String ENV_UPLOADER_LEASE_SECONDS = "UPLOADER_LEASE_SECONDS";
+    public static final long UPLOADER_LEASE_SECONDS = Long.parseLong(getenv().getOrDefault(ENV_UPLOADER_LEASE_SECONDS, "300"));
+
+    private static final String ENV_UPLOADER_TUNING_PROFILE = "UPLOADER_TUNING_PROFILE";
+    public static final String UPLOADER_TUNING_PROFILE = getenv().getOrDefault(ENV_UPLOADER_TUNING_PROFILE, UPLOADER_STATE_DIR + "/tuning.properties");
+
+    private static final String ENV_UPLOADER_PROBE_SAMPLE_SIZE = "UPLOADER_PROBE_SAMPLE_SIZE";
+    public static final int UPLOADER_PROBE_SAMPLE_SIZE = Integer.parseInt(getenv().getOrDefault(ENV_UPLOADER_PROBE_SAMPLE_SIZE, "32"));
+
+    private static final String ENV_UPLOADER_PROBE_TRIAL_BYTES = "UPLOADER_PROBE_TRIAL_BYTES";
+    private static final String DEFAULT_PROBE_TRIAL_BYTES = String.valueOf(64L * 1024 * 1024); // 64 MB
+    public static final long UPLOADER_PROBE_TRIAL_BYTES = Long.parseLong(getenv().getOrDefault(ENV_UPLOADER_PROBE_TRIAL_BYTES, DEFAULT_PROBE_TRIAL_BYTES));
+
+    private static final String ENV_UPLOADER_PROBE_TRIAL_SECONDS = "UPLOADER_PROBE_TRIAL_SECONDS";
+    public static final long UPLOADER_PROBE_TRIAL_SECONDS = Long.parseLong(getenv().getOrDefault(ENV_UPLOADER_PROBE_TRIAL_SECONDS, "60"));
+
+    private static final String ENV_UPLOADER_DRAIN_SECONDS = "UPLOADER_DRAIN_SECONDS";
+    public static final long UPLOADER_DRAIN_SECONDS = Long.parseLong(getenv().getOrDefault(ENV_UPLOADER_DRAIN_SECONDS, "60"));
+
+    private static final String ENV_UPLOADER_MEDIA_CATALOG = "UPLOADER_MEDIA_CATALOG";
+    public static final String UPLOADER_MEDIA_CATALOG = getenv().getOrDefault(ENV_UPLOADER_MEDIA_CATALOG, UPLOADER_STATE_DIR + "/media-items.tsv");
+
+    private static final String ENV_UPLOADER_NEAR_DUPLICATES = "UPLOADER_NEAR_DUPLICATES";
+    public static final String UPLOADER_NEAR_DUPLICATES = getenv().getOrDefault(ENV_UPLOADER_NEAR_DUPLICATES, "off");
+
+    private static final String ENV_UPLOADER_NEAR_DUPLICATE_DISTANCE = "UPLOADER_NEAR_DUPLICATE_DISTANCE";
+    public static final int UPLOADER_NEAR_DUPLICATE_DISTANCE = Integer.parseInt(getenv().getOrDefault(ENV_UPLOADER_NEAR_DUPLICATE_DISTANCE, "5"));
+
+    private static final String ENV_UPLOADER_RECONCILE = "UPLOADER_RECONCILE";
+    public static final boolean UPLOADER_RECONCILE = Boolean.parseBoolean(getenv().getOrDefault(ENV_UPLOADER_RECONCILE, "false"));
+
+    private static final String ENV_UPLOADER_LIBRARY_INDEX_TTL_HOURS = "UPLOADER_LIBRARY_INDEX_TTL_HOURS";
+    public static final long UPLOADER_LIBRARY_INDEX_TTL_HOURS = Long.parseLong(getenv().getOrDefault(ENV_UPLOADER_LIBRARY_INDEX_TTL_HOURS, "24"));
+
+    private static final String ENV_UPLOADER_READ_AHEAD_BYTES = "UPLOADER_READ_AHEAD_BYTES";
+    public static final long UPLOADER_READ_AHEAD_BYTES = Long.parseLong(getenv().getOrDefault(ENV_UPLOADER_READ_AHEAD_BYTES, "0"));
+
+    private static final String ENV_UPLOADER_READ_AHEAD_FILES = "UPLOADER_READ_AHEAD_FILES";
+    public static final int UPLOADER_READ_AHEAD_FILES = Integer.parseInt(getenv().getOrDefault(ENV_UPLOADER_READ_AHEAD_FILES, "16"));
+
+    private static final String ENV_UPLOADER_TRACE = "UPLOADER_TRACE";
+    public static final String UPLOADER_TRACE = getenv().getOrDefault(ENV_UPLOADER_TRACE, "");
+
+    private static final String ENV_UPLOADER_INFLIGHT_BYTES = "UPLOADER_INFLIGHT_BYTES";
+    public static final long UPLOADER_INFLIGHT_BYTES = Long.parseLong(getenv().getOrDefault(ENV_UPLOADER_INFLIGHT_BYTES, "0"));
+
+    private static final String ENV_UPLOADER_INFLIGHT_MAX_UPLOADS = "UPLOADER_INFLIGHT_MAX_UPLOADS";
+    public static final int UPLOADER_INFLIGHT_MAX_UPLOADS = Integer.parseInt(getenv().getOrDefault(ENV_UPLOADER_INFLIGHT_MAX_UPLOADS, "32"));
+
+    private static String defaultNodeId() {
+        String host = getenv().getOrDefault("HOSTNAME", "localhost");
+        return host + "-" + ProcessHandle.current().pid();
+    }
 }
@@ -0,0 +1,79 @@
+package cc.photos.uploader.util;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+/**
+ * Identifies the content of a media file.
+ *
+ * <p>The fingerprint of a file is its size and a SHA-256 of all of its bytes, so two files with the same
+ * fingerprint are the same content. Since hashing a large video means reading all of it, files are first
+ * told apart by {@link #sample}, a SHA-256 of their first and last {@link #SAMPLE_SIZE} bytes: only files
+ * whose size and sample match another file's are worth fingerprinting. The sample alone is not enough, e.g.
+ * fixed-size video segments or padded raw files of the same size may share both ends.
+ */
+public final class ContentFingerprint {
+
+    /** Number of bytes read from each end of the file by {@link #sample}. */
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    private ContentFingerprint() {}
+
+    /**
+     * Computes the fingerprint of a file, reading all of it.
+     *
+     * @param file File to fingerprint.
+     * @param size Size of the file, as already known by the caller.
+     * @return The fingerprint, prefixed with the size so that it also works as a size lookup key.
+     */
+    public static String of(File file, long size) throws IOException {
+        Hasher hasher = Hashing.sha256().newHasher().putLong(size);
+        byte[] buffer = new byte[SAMPLE_SIZE];
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                hasher.putBytes(buffer, 0, read);
+            }
+        }
+        return size + "-" + hasher.hash();
+    }
+
+    /**
+     * Computes a cheap hash of the ends of a file. Files with different samples have different content,
+     * files with the same sample may not.
+     *
+     * @param file File to sample.
+     * @param size Size of the file, as already known by the caller.
+     * @return The sample.
+     */
+    public static String sample(File file, long size) throws IOException {
+        Hasher hasher = Hashing.sha256().newHasher().putLong(size);
+        byte[] buffer = new byte[(int) Math.min(SAMPLE_SIZE, size)];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.readFully(buffer);
+            hasher.putBytes(buffer);
+            if (size > SAMPLE_SIZE) {
+                raf.seek(Math.max(SAMPLE_SIZE, size - SAMPLE_SIZE));
+                int read = raf.read(buffer);
+                hasher.putBytes(buffer, 0, Math.max(0, read));
+            }
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Size of the file a fingerprint was computed for.
+     *
+     * @param fingerprint A fingerprint returned by {@link #of(File, long)}.
+     * @return The size of the file.
+     */
+    public static long sizeOf(String fingerprint) {
+        return Long.parseLong(fingerprint.substring(0, fingerprint.indexOf('-')));
+    }
+}
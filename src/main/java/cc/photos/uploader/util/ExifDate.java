@@ -0,0 +1,197 @@
+package cc.photos.uploader.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * Reads the time a photo was taken from the {@code DateTimeOriginal} tag of its EXIF metadata, which is
+ * what Google Photos uses as the creation time of the media item.
+ *
+ * <p>EXIF metadata is a TIFF structure, stored in the APP1 segment of JPEG files and at the start of TIFF
+ * based raw files (DNG, CR2, NEF, ARW...). Only the few directory entries leading to the tag are read, not
+ * the image. The tag holds a local time: it is placed in time with {@code OffsetTimeOriginal} when the
+ * camera wrote one, and in the given zone otherwise.
+ */
+public final class ExifDate {
+    private static final int JPEG_SOI = 0xFFD8;
+    private static final int JPEG_APP1 = 0xFFE1;
+    private static final int JPEG_SOS = 0xFFDA;
+    private static final byte[] EXIF_HEADER = "Exif\0\0".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+    private static final int TAG_OFFSET_TIME_ORIGINAL = 0x9011;
+
+    /** Directories with more entries than this are taken for corrupt data. */
+    private static final int MAX_IFD_ENTRIES = 1024;
+
+    private static final DateTimeFormatter EXIF_DATE_TIME = DateTimeFormatter.ofPattern("yyyy:MM:dd HH:mm:ss");
+
+    private ExifDate() {}
+
+    /**
+     * Reads the time a photo was taken.
+     *
+     * @param file JPEG or TIFF based file.
+     * @param zone Zone of the local time of a photo whose metadata holds no offset.
+     * @return The time, or empty if the file is of another type or has no such tag.
+     */
+    public static Optional<Instant> captureTime(File file, ZoneId zone) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long tiffStart = tiffStart(raf);
+            if (tiffStart < 0) {
+                return Optional.empty();
+            }
+            return captureTime(raf, tiffStart, zone);
+        }
+    }
+
+    /** Position of the TIFF header in the file, or -1 if there is none. */
+    private static long tiffStart(RandomAccessFile raf) throws IOException {
+        if (raf.length() < 8) {
+            return -1;
+        }
+        int magic = raf.readInt();
+        if (magic == 0x49492A00 || magic == 0x4D4D002A) {
+            return 0;
+        }
+        if (magic >>> 16 != JPEG_SOI) {
+            return -1;
+        }
+        long position = 2;
+        while (position + 4 <= raf.length()) {
+            raf.seek(position);
+            int marker = raf.readUnsignedShort();
+            int length = raf.readUnsignedShort();
+            if (marker == JPEG_SOS || (marker & 0xFF00) != 0xFF00) {
+                return -1;
+            }
+            if (marker == JPEG_APP1 && length >= EXIF_HEADER.length + 8) {
+                byte[] header = new byte[EXIF_HEADER.length];
+                raf.readFully(header);
+                if (Arrays.equals(header, EXIF_HEADER)) {
+                    return position + 4 + EXIF_HEADER.length;
+                }
+            }
+            position += 2 + length;
+        }
+        return -1;
+    }
+
+    private static Optional<Instant> captureTime(RandomAccessFile raf, long tiffStart, ZoneId zone)
+            throws IOException {
+        raf.seek(tiffStart);
+        ByteOrder order = raf.readUnsignedShort() == 0x4949 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        ByteBuffer ifd0 = read(raf, tiffStart + 4, 4, order);
+        if (ifd0 == null) {
+            return Optional.empty();
+        }
+        long exifIfd = findEntry(raf, tiffStart, ifd0.getInt() & 0xFFFFFFFFL, TAG_EXIF_IFD, order);
+        if (exifIfd < 0) {
+            return Optional.empty();
+        }
+        ByteBuffer exifOffset = read(raf, exifIfd + 8, 4, order);
+        if (exifOffset == null) {
+            return Optional.empty();
+        }
+        long exif = exifOffset.getInt() & 0xFFFFFFFFL;
+        String dateTime = readAscii(raf, tiffStart, findEntry(raf, tiffStart, exif, TAG_DATE_TIME_ORIGINAL, order), order);
+        if (dateTime == null) {
+            return Optional.empty();
+        }
+        String offset = readAscii(raf, tiffStart, findEntry(raf, tiffStart, exif, TAG_OFFSET_TIME_ORIGINAL, order), order);
+        LocalDateTime local;
+        try {
+            local = LocalDateTime.parse(dateTime, EXIF_DATE_TIME);
+        } catch (DateTimeParseException e) {
+            // E.g. "0000:00:00 00:00:00" written by cameras whose clock was not set.
+            return Optional.empty();
+        }
+        ZoneId at = zone;
+        if (offset != null) {
+            try {
+                at = ZoneOffset.of(offset);
+            } catch (DateTimeException e) {
+                // Not an offset, e.g. blank.
+            }
+        }
+        return Optional.of(local.atZone(at).toInstant());
+    }
+
+    /**
+     * Finds a tag in an image file directory.
+     *
+     * @return Position of its 12 byte entry in the file, or -1 if it is not there.
+     */
+    private static long findEntry(RandomAccessFile raf, long tiffStart, long ifdOffset, int tag, ByteOrder order)
+            throws IOException {
+        ByteBuffer count = read(raf, tiffStart + ifdOffset, 2, order);
+        if (count == null) {
+            return -1;
+        }
+        int entries = count.getShort() & 0xFFFF;
+        if (entries > MAX_IFD_ENTRIES) {
+            return -1;
+        }
+        ByteBuffer directory = read(raf, tiffStart + ifdOffset + 2, entries * 12, order);
+        if (directory == null) {
+            return -1;
+        }
+        for (int i = 0; i < entries; i++) {
+            if ((directory.getShort(i * 12) & 0xFFFF) == tag) {
+                return tiffStart + ifdOffset + 2 + i * 12L;
+            }
+        }
+        return -1;
+    }
+
+    /** Reads the value of an ASCII entry, without its terminating NUL. */
+    private static String readAscii(RandomAccessFile raf, long tiffStart, long entry, ByteOrder order)
+            throws IOException {
+        if (entry < 0) {
+            return null;
+        }
+        ByteBuffer header = read(raf, entry + 2, 10, order);
+        if (header == null || header.getShort() != 2) {
+            return null;
+        }
+        int length = header.getInt();
+        if (length <= 0 || length > 64) {
+            return null;
+        }
+        // Values of up to 4 bytes are stored in the entry itself.
+        long position = length <= 4 ? entry + 8 : tiffStart + (header.getInt() & 0xFFFFFFFFL);
+        ByteBuffer value = read(raf, position, length, order);
+        if (value == null) {
+            return null;
+        }
+        String text = new String(value.array(), StandardCharsets.US_ASCII);
+        int end = text.indexOf('\0');
+        return (end >= 0 ? text.substring(0, end) : text).trim();
+    }
+
+    /** Reads bytes at a position, or returns null if they are past the end of the file. */
+    private static ByteBuffer read(RandomAccessFile raf, long position, int length, ByteOrder order)
+            throws IOException {
+        if (position < 0 || position + length > raf.length()) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        raf.seek(position);
+        raf.readFully(bytes);
+        return ByteBuffer.wrap(bytes).order(order);
+    }
+}
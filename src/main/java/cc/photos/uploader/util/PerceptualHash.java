@@ -0,0 +1,95 @@
+package cc.photos.uploader.util;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.OptionalLong;
+
+/**
+ * Difference hash (dHash) of images: a 64-bit hash that changes little when an image is re-encoded,
+ * resized or slightly altered, so that the Hamming distance between two hashes tells how alike the
+ * images look.
+ *
+ * <p>The image is reduced to a 9x8 grid of average luminance, and each bit tells whether a cell is
+ * darker than its right neighbour. Images are decoded with source subsampling, so that only a few
+ * thousand pixels are read whatever the resolution.
+ */
+public final class PerceptualHash {
+    private static final int GRID_WIDTH = 9;
+    private static final int GRID_HEIGHT = 8;
+
+    /** Subsample to about this many pixels per grid cell in each direction, enough to average out noise. */
+    private static final int PIXELS_PER_CELL = 8;
+
+    private PerceptualHash() {}
+
+    /**
+     * Computes the difference hash of an image file.
+     *
+     * @param file File to hash.
+     * @return The hash, or empty if the file is not an image that ImageIO can decode.
+     */
+    public static OptionalLong dHash(File file) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            if (in == null) {
+                return OptionalLong.empty();
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return OptionalLong.empty();
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int step = Math.max(1, Math.min(reader.getWidth(0) / (GRID_WIDTH * PIXELS_PER_CELL),
+                        reader.getHeight(0) / (GRID_HEIGHT * PIXELS_PER_CELL)));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                return OptionalLong.of(dHash(reader.read(0, param)));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Computes the difference hash of a decoded image.
+     */
+    public static long dHash(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        double[] luminance = new double[GRID_WIDTH * GRID_HEIGHT];
+        int[] pixels = new int[GRID_WIDTH * GRID_HEIGHT];
+        for (int y = 0; y < height; y++) {
+            int row = Math.min(GRID_HEIGHT - 1, y * GRID_HEIGHT / height);
+            for (int x = 0; x < width; x++) {
+                int cell = row * GRID_WIDTH + Math.min(GRID_WIDTH - 1, x * GRID_WIDTH / width);
+                int rgb = image.getRGB(x, y);
+                luminance[cell] += 0.299 * ((rgb >> 16) & 0xff) + 0.587 * ((rgb >> 8) & 0xff) + 0.114 * (rgb & 0xff);
+                pixels[cell]++;
+            }
+        }
+        long hash = 0;
+        for (int row = 0; row < GRID_HEIGHT; row++) {
+            for (int column = 0; column < GRID_WIDTH - 1; column++) {
+                int cell = row * GRID_WIDTH + column;
+                double left = luminance[cell] / Math.max(1, pixels[cell]);
+                double right = luminance[cell + 1] / Math.max(1, pixels[cell + 1]);
+                hash = (hash << 1) | (left < right ? 1 : 0);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Number of bits that differ between two hashes.
+     */
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+}
@@ -0,0 +1,261 @@
+package cc.photos.uploader.util;
+
+import cc.photos.uploader.model.AlbumEntry;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.photos.types.proto.Album;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+/**
+ * Reads the photo list into {@link AlbumEntry}s.
+ *
+ * <p>Each line is either a path of the form {@code /yearName/albumName/filename.jpg}, whose album is the
+ * name of the parent directory, or a JSON object with a {@code path}, and optionally an {@code album} and
+ * a {@code description}:
+ * <pre>{"path": "/2023/Trip/IMG_0001.jpg", "album": "Trip to Rome", "description": "Colosseum"}</pre>
+ * Both forms may be mixed in the same list.
+ *
+ * <p>The list is memory-mapped and split at line boundaries into segments that are parsed in parallel.
+ * Album names are interned, so that each one is stored once whatever the number of entries, and
+ * segments keep their entries in plain arrays until albums are resolved, and are freed once collected.
+ */
+public class PhotoListReader {
+    private static final Logger LOG = LoggerFactory.getLogger(PhotoListReader.class);
+
+    /** Lists are not split in segments smaller than this. */
+    private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    /** A mapping cannot exceed 2 GB, stay well below so that a segment can extend to the end of its last line. */
+    private static final long MAX_SEGMENT_SIZE = 1024 * 1024 * 1024;
+
+    private static final int BOUNDARY_SCAN_SIZE = 8192;
+
+    private final int parallelism;
+    private final Map<String, String> albumNames = new ConcurrentHashMap<>();
+
+    public PhotoListReader() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param parallelism Number of segments to split the list into, at most.
+     */
+    public PhotoListReader(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Reads a photo list.
+     *
+     * @param photoList The list to read.
+     * @param albumForName Returns the album of the given name, called once per album, in the order the
+     *                     albums first appear in the list, on the calling thread.
+     * @return The entries of the list, in order.
+     */
+    public List<AlbumEntry> read(File photoList, Function<String, Album> albumForName) throws IOException {
+        List<Segment> segments = parse(photoList);
+        List<AlbumEntry> entries = new ArrayList<>(segments.stream().mapToInt(segment -> segment.size).sum());
+        resolve(photoList, segments, albumForName, entries);
+        return entries;
+    }
+
+    private List<Segment> parse(File photoList) throws IOException {
+        try (FileChannel channel = FileChannel.open(photoList.toPath(), StandardOpenOption.READ)) {
+            long[] bounds = split(channel);
+            return IntStream.range(0, bounds.length - 1).parallel()
+                    .mapToObj(i -> parseSegment(channel, bounds[i], bounds[i + 1]))
+                    .toList();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void resolve(File photoList, List<Segment> segments, Function<String, Album> albumForName,
+                                List<AlbumEntry> entries) {
+        Map<String, Album> albums = new HashMap<>();
+        int count = 0;
+        for (Segment segment : segments) {
+            for (int i = 0; i < segment.size; i++) {
+                Album album = albums.computeIfAbsent(segment.albums[i], albumForName);
+                String description = segment.descriptions != null ? segment.descriptions[i] : null;
+                entries.add(new AlbumEntry(album, new File(segment.paths[i]), description));
+            }
+            count += segment.size;
+            segment.clear();
+        }
+        LOG.info("Read {} entries in {} albums from {} using {} segments.",
+                count, albums.size(), photoList, segments.size());
+    }
+
+    /*
+    Returns the bounds of the segments: segment i spans [bounds[i], bounds[i + 1]) and ends with a full line.
+     */
+    private long[] split(FileChannel channel) throws IOException {
+        long size = channel.size();
+        int parts = (int) Math.max(1, Math.min(parallelism, size / MIN_SEGMENT_SIZE));
+        parts = (int) Math.max(parts, (size + MAX_SEGMENT_SIZE - 1) / MAX_SEGMENT_SIZE);
+        long[] bounds = new long[parts + 1];
+        bounds[parts] = size;
+        for (int i = 1; i < parts; i++) {
+            bounds[i] = nextLineStart(channel, Math.max(bounds[i - 1], size / parts * i), size);
+        }
+        return bounds;
+    }
+
+    private static long nextLineStart(FileChannel channel, long position, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BOUNDARY_SCAN_SIZE);
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    private Segment parseSegment(FileChannel channel, long start, long end) {
+        MappedByteBuffer buffer;
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        // Photo list lines are typically around a hundred bytes long.
+        Segment segment = new Segment((int) Math.max(16, (end - start) / 100));
+        byte[] line = new byte[256];
+        int limit = buffer.limit();
+        int lineStart = 0;
+        for (int i = 0; i <= limit; i++) {
+            if (i < limit && buffer.get(i) != '\n') {
+                continue;
+            }
+            int length = i - lineStart;
+            if (length > 0 && buffer.get(lineStart + length - 1) == '\r') {
+                length--;
+            }
+            if (length > 0) {
+                if (line.length < length) {
+                    line = new byte[Math.max(length, line.length * 2)];
+                }
+                buffer.get(lineStart, line, 0, length);
+                parseLine(new String(line, 0, length, StandardCharsets.UTF_8), segment);
+            }
+            lineStart = i + 1;
+        }
+        return segment;
+    }
+
+    private void parseLine(String line, Segment segment) {
+        if (line.isBlank()) {
+            return;
+        }
+        if (line.charAt(0) != '{') {
+            segment.add(line, intern(albumOf(line)), null);
+            return;
+        }
+        try {
+            JsonObject entry = JsonParser.parseString(line).getAsJsonObject();
+            String path = entry.get("path").getAsString();
+            String album = entry.has("album") ? entry.get("album").getAsString() : albumOf(path);
+            JsonElement description = entry.get("description");
+            segment.add(path, intern(album), description != null && !description.isJsonNull()
+                    ? description.getAsString() : null);
+        } catch (JsonParseException | IllegalStateException | UnsupportedOperationException | NullPointerException e) {
+            throw new IllegalArgumentException("Malformed photo list entry: " + line, e);
+        }
+    }
+
+    /*
+    The album of a path is the name of its parent directory. Only paths with empty names, e.g. with
+    doubled slashes, need to be parsed as a `Path`.
+     */
+    private static String albumOf(String path) {
+        int end = path.lastIndexOf('/');
+        int start = end > 0 ? path.lastIndexOf('/', end - 1) + 1 : 0;
+        if (end > start && end < path.length() - 1) {
+            return path.substring(start, end);
+        }
+        Path parsed = Paths.get(path);
+        if (parsed.getNameCount() < 2) {
+            throw new IllegalArgumentException("No album directory in photo list entry: " + path);
+        }
+        return parsed.getName(parsed.getNameCount() - 2).toString();
+    }
+
+    private String intern(String albumName) {
+        String existing = albumNames.putIfAbsent(albumName, albumName);
+        return existing != null ? existing : albumName;
+    }
+
+    /**
+     * Entries parsed from a segment, as parallel arrays.
+     */
+    private static class Segment {
+        String[] paths;
+        String[] albums;
+        String[] descriptions;
+        int size;
+
+        Segment(int capacity) {
+            paths = new String[capacity];
+            albums = new String[capacity];
+        }
+
+        void add(String path, String album, String description) {
+            if (size == paths.length) {
+                int capacity = size + (size >> 1) + 1;
+                paths = Arrays.copyOf(paths, capacity);
+                albums = Arrays.copyOf(albums, capacity);
+                if (descriptions != null) {
+                    descriptions = Arrays.copyOf(descriptions, capacity);
+                }
+            }
+            if (description != null && descriptions == null) {
+                descriptions = new String[paths.length];
+            }
+            paths[size] = path;
+            albums[size] = album;
+            if (descriptions != null) {
+                descriptions[size] = description;
+            }
+            size++;
+        }
+
+        /** Frees the arrays once the entries are handed over. */
+        void clear() {
+            paths = null;
+            albums = null;
+            descriptions = null;
+            size = 0;
+        }
+    }
+}
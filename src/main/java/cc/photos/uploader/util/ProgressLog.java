@@ -0,0 +1,85 @@
+package cc.photos.uploader.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts per-item events of a run and logs them as periodic summaries at INFO level.
+ *
+ * <p>Per-item events themselves are logged at DEBUG level to the {@link #EVENTS} logger, which can be
+ * enabled on its own in {@code logback.xml} without making the rest of the uploader verbose. Counting
+ * is lock-free so that workers can record events without contending with each other.
+ */
+public class ProgressLog {
+    private static final Logger LOG = LoggerFactory.getLogger(ProgressLog.class);
+
+    /** Logger for per-item events, only enabled at DEBUG level. */
+    public static final Logger EVENTS = LoggerFactory.getLogger("cc.photos.uploader.events");
+
+    /** Log a summary at least once every this many processed items. */
+    private static final int SUMMARY_EVERY_ITEMS = 500;
+
+    /** Log a summary at least once every this many seconds while items are being processed. */
+    private static final long SUMMARY_EVERY_SECONDS = 30;
+
+    private final LongAdder scheduled = new LongAdder();
+    private final LongAdder uploaded = new LongAdder();
+    private final LongAdder uploadFailures = new LongAdder();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder creationFailures = new LongAdder();
+    private final LongAdder linked = new LongAdder();
+    private final AtomicLong lastSummaryNanos = new AtomicLong(System.nanoTime());
+    private final AtomicLong lastSummaryItems = new AtomicLong();
+
+    public void scheduled() {
+        scheduled.increment();
+    }
+
+    public void uploaded() {
+        uploaded.increment();
+    }
+
+    public void uploadFailed() {
+        uploadFailures.increment();
+    }
+
+    public void created(int count) {
+        created.add(count);
+    }
+
+    public void creationFailed(int count) {
+        creationFailures.add(count);
+    }
+
+    public void linked(int count) {
+        linked.add(count);
+    }
+
+    /**
+     * Logs a summary if enough items were processed or enough time has passed since the last one.
+     */
+    public void logSummaryIfDue() {
+        long items = uploaded.sum() + uploadFailures.sum();
+        long now = System.nanoTime();
+        long last = lastSummaryNanos.get();
+        boolean due = items - lastSummaryItems.get() >= SUMMARY_EVERY_ITEMS
+                || now - last >= TimeUnit.SECONDS.toNanos(SUMMARY_EVERY_SECONDS);
+        if (due && lastSummaryNanos.compareAndSet(last, now)) {
+            lastSummaryItems.set(items);
+            logSummary();
+        }
+    }
+
+    /**
+     * Logs a summary of all events so far.
+     */
+    public void logSummary() {
+        LOG.info("Progress: scheduled={} uploaded={} uploadFailed={} created={} creationFailed={} linked={}",
+                scheduled.sum(), uploaded.sum(), uploadFailures.sum(), created.sum(), creationFailures.sum(),
+                linked.sum());
+    }
+}
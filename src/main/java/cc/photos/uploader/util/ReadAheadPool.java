@@ -0,0 +1,367 @@
+package cc.photos.uploader.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads the first bytes of upcoming uploads ahead of time, so that an upload worker starts sending as
+ * soon as it picks a file instead of first waiting on slow storage such as a network share.
+ *
+ * <p>Files are announced with {@link #scheduled} in the order their uploads will start. A few reader
+ * threads prefetch the first chunk of the next files, up to a number of files and a memory budget,
+ * while the current uploads are on the wire. The memory is off-heap, in {@link #PAGE_SIZE} pages that
+ * are allocated on first use and reused afterwards, so that small files take little room and the pool
+ * never holds more than its budget.
+ *
+ * <p>An upload takes its prefetched bytes with {@link #take}, reads them through {@link ChunkedFile},
+ * and gives the pages back with {@link #release} when the file is closed. A file modified since it was
+ * prefetched is read from storage again.
+ *
+ * <p>Hits and misses are exposed through JMX, see {@link ReadAheadPoolMBean}.
+ */
+public class ReadAheadPool implements ReadAheadPoolMBean, AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(ReadAheadPool.class);
+
+    /** Size of the off-heap pages the budget is split into. */
+    public static final int PAGE_SIZE = 1024 * 1024;
+
+    private static final int READER_THREADS = 4;
+
+    private final int maxPages;
+    private final int maxFiles;
+    private final long prefetchBytes;
+    private final ExecutorService readers;
+
+    private final Deque<ByteBuffer> freePages = new ArrayDeque<>();
+    private int allocatedPages;
+    private int usedPages;
+
+    /**
+     * Files scheduled for upload and not prefetched yet, in the order their uploads start. Files taken or
+     * discarded before their turn stay here until {@link #fill} reaches them, it skips those no longer in
+     * {@link #waiting}.
+     */
+    private final Deque<File> upcoming = new ArrayDeque<>();
+
+    /** Files in {@link #upcoming} whose upload has not started. */
+    private final Set<File> waiting = new HashSet<>();
+
+    /** Prefetches not taken yet, finished or in progress. */
+    private final Map<File, Prefetch> prefetches = new HashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong lateHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong servedBytes = new AtomicLong();
+
+    /**
+     * @param budgetBytes Most memory the pool holds, rounded down to whole pages.
+     * @param maxFiles Most files prefetched ahead of the uploads.
+     * @param prefetchBytes Number of bytes prefetched from the start of each file, usually the chunk size.
+     */
+    public ReadAheadPool(long budgetBytes, int maxFiles, long prefetchBytes) {
+        this.maxPages = (int) Math.min(Integer.MAX_VALUE, budgetBytes / PAGE_SIZE);
+        this.maxFiles = maxFiles;
+        // A file larger than the budget is never prefetched whole, only its first pages are.
+        this.prefetchBytes = Math.min(prefetchBytes, (long) maxPages * PAGE_SIZE);
+        AtomicInteger threads = new AtomicInteger();
+        this.readers = Executors.newFixedThreadPool(READER_THREADS, r -> {
+            Thread thread = new Thread(r, "read-ahead-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Announces a file whose upload will start after those announced before it.
+     *
+     * @param file File to prefetch.
+     */
+    public synchronized void scheduled(File file) {
+        if (waiting.add(file)) {
+            upcoming.addLast(file);
+        }
+        fill();
+    }
+
+    /**
+     * Takes the prefetched first bytes of a file whose upload starts now, waiting for the prefetch if it
+     * is in progress. The caller gives them back with {@link #release}.
+     *
+     * @param file File being uploaded.
+     * @return Its first bytes, empty if they were not prefetched.
+     */
+    public Optional<Prefetched> take(File file) {
+        Prefetch prefetch;
+        synchronized (this) {
+            prefetch = prefetches.remove(file);
+            if (prefetch == null) {
+                waiting.remove(file);
+            }
+        }
+        if (prefetch == null) {
+            misses.incrementAndGet();
+            return Optional.empty();
+        }
+        if (!prefetch.done.isDone()) {
+            lateHits.incrementAndGet();
+        }
+        boolean read = prefetch.done.join();
+        if (!read || file.length() != prefetch.length || file.lastModified() != prefetch.lastModified) {
+            release(prefetch.prefetched);
+            misses.incrementAndGet();
+            return Optional.empty();
+        }
+        hits.incrementAndGet();
+        return Optional.of(prefetch.prefetched);
+    }
+
+    /**
+     * Forgets a file whose upload will not start, e.g. because it was skipped, and frees its pages.
+     *
+     * @param file File that was scheduled.
+     */
+    public void discard(File file) {
+        Prefetch prefetch;
+        synchronized (this) {
+            prefetch = prefetches.remove(file);
+            if (prefetch == null) {
+                waiting.remove(file);
+                return;
+            }
+        }
+        prefetch.done.whenComplete((read, e) -> release(prefetch.prefetched));
+    }
+
+    /**
+     * Gives back the pages of prefetched bytes once they are read.
+     *
+     * @param prefetched Bytes returned by {@link #take}.
+     */
+    public synchronized void release(Prefetched prefetched) {
+        for (ByteBuffer page : prefetched.pages) {
+            page.clear();
+            freePages.push(page);
+        }
+        usedPages -= prefetched.pages.size();
+        prefetched.pages.clear();
+        fill();
+    }
+
+    /*
+    Starts prefetching the next files while there is room, in order, so that the files needed first are
+    prefetched first.
+     */
+    private void fill() {
+        // Pages for a whole prefetch, the surplus is given back once the size of the file is known.
+        int pages = pages(prefetchBytes);
+        if (pages == 0) {
+            // A budget smaller than a page, nothing is ever prefetched.
+            upcoming.clear();
+            waiting.clear();
+            return;
+        }
+        while (prefetches.size() < maxFiles && !upcoming.isEmpty()) {
+            File file = upcoming.peekFirst();
+            if (!waiting.contains(file) || prefetches.containsKey(file)) {
+                // Taken, discarded or listed twice: nothing to prefetch.
+                upcoming.removeFirst();
+                continue;
+            }
+            if (usedPages + pages > maxPages) {
+                return;
+            }
+            upcoming.removeFirst();
+            waiting.remove(file);
+            Prefetch prefetch = new Prefetch(new Prefetched(takePages(pages), prefetchBytes));
+            prefetches.put(file, prefetch);
+            readers.execute(() -> prefetch.done.complete(prefetch(file, prefetch)));
+        }
+    }
+
+    private static int pages(long length) {
+        return (int) ((length + PAGE_SIZE - 1) / PAGE_SIZE);
+    }
+
+    /*
+    Runs on a reader thread: the file is looked up here rather than in fill(), as storage may be slow and
+    fill() holds the pool.
+     */
+    private boolean prefetch(File file, Prefetch prefetch) {
+        prefetch.length = file.length();
+        prefetch.lastModified = file.lastModified();
+        long length = Math.min(prefetch.length, prefetchBytes);
+        trimPages(prefetch.prefetched, pages(length));
+        prefetch.prefetched.length = length;
+        // Empty or missing: nothing to prefetch.
+        return length > 0 && read(file, prefetch.prefetched);
+    }
+
+    private synchronized void trimPages(Prefetched prefetched, int count) {
+        List<ByteBuffer> pages = prefetched.pages;
+        int surplus = Math.max(0, pages.size() - count);
+        for (int i = 0; i < surplus; i++) {
+            ByteBuffer page = pages.remove(pages.size() - 1);
+            page.clear();
+            freePages.push(page);
+        }
+        usedPages -= surplus;
+        if (surplus > 0) {
+            fill();
+        }
+    }
+
+    private List<ByteBuffer> takePages(int count) {
+        List<ByteBuffer> pages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (freePages.isEmpty()) {
+                freePages.push(ByteBuffer.allocateDirect(PAGE_SIZE));
+                allocatedPages++;
+            }
+            pages.add(freePages.pop());
+        }
+        usedPages += count;
+        return pages;
+    }
+
+    private static boolean read(File file, Prefetched prefetched) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long position = 0;
+            for (ByteBuffer page : prefetched.pages) {
+                page.limit((int) Math.min(PAGE_SIZE, prefetched.length - position));
+                while (page.hasRemaining()) {
+                    if (channel.read(page, position + page.position()) < 0) {
+                        return false;
+                    }
+                }
+                position += page.limit();
+            }
+            return true;
+        } catch (IOException e) {
+            // The upload reads the file itself and reports the error.
+            LOG.debug("Unable to prefetch {}: {}", file, e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public long getBudgetBytes() {
+        return (long) maxPages * PAGE_SIZE;
+    }
+
+    @Override
+    public synchronized long getUsedBytes() {
+        return (long) usedPages * PAGE_SIZE;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getLateHits() {
+        return lateHits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hits = this.hits.get();
+        long total = hits + misses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public long getServedBytes() {
+        return servedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits=%d (%d late) misses=%d hitRatio=%.2f served=%d MB allocated=%d MB",
+                hits.get(), lateHits.get(), misses.get(), getHitRatio(), servedBytes.get() / (1024 * 1024),
+                (long) allocatedPages * PAGE_SIZE / (1024 * 1024));
+    }
+
+    @Override
+    public void close() {
+        readers.shutdownNow();
+        synchronized (this) {
+            // Prefetches that never started must not leave a taker waiting.
+            prefetches.values().forEach(prefetch -> prefetch.done.complete(false));
+        }
+    }
+
+    /**
+     * The first bytes of a file, held in pages of the pool.
+     */
+    public class Prefetched {
+        private final List<ByteBuffer> pages;
+        private long length;
+
+        private Prefetched(List<ByteBuffer> pages, long length) {
+            this.pages = pages;
+            this.length = length;
+        }
+
+        /** Number of bytes prefetched from the start of the file. */
+        public long length() {
+            return length;
+        }
+
+        /**
+         * Copies prefetched bytes, without going past the end of a page.
+         *
+         * @param position Offset in the file, less than {@link #length()}.
+         * @param b Destination.
+         * @param off Offset in the destination.
+         * @param len Most bytes to copy.
+         * @return Number of bytes copied.
+         */
+        public int read(long position, byte[] b, int off, int len) {
+            ByteBuffer page = pages.get((int) (position / PAGE_SIZE));
+            int offsetInPage = (int) (position % PAGE_SIZE);
+            int count = Math.min(len, page.limit() - offsetInPage);
+            page.get(offsetInPage, b, off, count);
+            servedBytes.addAndGet(count);
+            return count;
+        }
+    }
+
+    private static class Prefetch {
+        final Prefetched prefetched;
+        final CompletableFuture<Boolean> done = new CompletableFuture<>();
+        /** Size and modification time of the file when it was prefetched, set by the reader before done. */
+        long length;
+        long lastModified;
+
+        Prefetch(Prefetched prefetched) {
+            this.prefetched = prefetched;
+        }
+    }
+}
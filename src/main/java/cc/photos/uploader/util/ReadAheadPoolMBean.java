@@ -0,0 +1,26 @@
+package cc.photos.uploader.util;
+
+/** Management interface of {@link ReadAheadPool}, exposes its hit and miss counts while a run is in progress. */
+public interface ReadAheadPoolMBean {
+
+    /** Most memory the pool holds, in bytes. */
+    long getBudgetBytes();
+
+    /** Memory currently holding prefetched bytes, in bytes. */
+    long getUsedBytes();
+
+    /** Number of uploads that found their first bytes prefetched. */
+    long getHits();
+
+    /** Number of hits that had to wait for the prefetch to finish. */
+    long getLateHits();
+
+    /** Number of uploads that read their first bytes from storage. */
+    long getMisses();
+
+    /** Share of uploads that found their first bytes prefetched, between 0 and 1. */
+    double getHitRatio();
+
+    /** Total number of bytes served from the pool instead of storage. */
+    long getServedBytes();
+}
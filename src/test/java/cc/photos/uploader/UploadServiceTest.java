@@ -0,0 +1,104 @@
+package cc.photos.uploader;
+
+import cc.photos.uploader.gateway.PhotosGateway;
+import cc.photos.uploader.model.AlbumEntry;
+import cc.photos.uploader.state.PendingWork;
+import cc.photos.uploader.state.TuningProfile;
+import cc.photos.uploader.tasks.ByteUploadTask;
+import com.google.photos.library.v1.proto.BatchAddMediaItemsToAlbumResponse;
+import com.google.photos.library.v1.proto.BatchCreateMediaItemsResponse;
+import com.google.photos.library.v1.proto.NewMediaItem;
+import com.google.photos.library.v1.upload.UploadMediaItemRequest;
+import com.google.photos.library.v1.upload.UploadMediaItemResponse;
+import com.google.photos.types.proto.Album;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UploadServiceTest {
+    private static final int THREADS = 2;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void drainSavesQueuedAndInterruptedUploads() throws Exception {
+        Path stateDir = directory.resolve("state");
+        Files.createDirectories(stateDir);
+        UploadService.StatePaths statePaths = UploadService.StatePaths.under(stateDir);
+        new TuningProfile(ByteUploadTask.CHUNK_SIZE_DEFAULT, THREADS, 0, 0, Instant.now())
+                .save(statePaths.tuningProfile());
+        Album album = Album.newBuilder().setId("album").setTitle("Album").build();
+        List<AlbumEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 3 * THREADS; i++) {
+            Path file = directory.resolve("photo" + i + ".jpg");
+            Files.write(file, new byte[]{(byte) i});
+            entries.add(new AlbumEntry(album, file.toFile()));
+        }
+        StalledGateway gateway = new StalledGateway();
+        try (UploadService uploadService = new UploadService(gateway, null, statePaths)) {
+            Thread run = new Thread(() -> {
+                try {
+                    uploadService.addEntriesToAlbums(entries);
+                } catch (Exception e) {
+                    // The run does not return from a drain past its deadline.
+                }
+            }, "run");
+            run.setDaemon(true);
+            run.start();
+            assertTrue(gateway.stalled.await(10, TimeUnit.SECONDS), "Uploads did not start.");
+
+            uploadService.drain(Duration.ofMillis(100));
+        }
+
+        PendingWork.Leftovers leftovers = new PendingWork(new File(statePaths.stateDir(), "pending.tsv")).take();
+        assertTrue(leftovers.uploadTokens().isEmpty());
+        assertEquals(entries.size(), leftovers.entries().size());
+        assertEquals(new HashSet<>(entries), new HashSet<>(leftovers.entries()));
+    }
+
+    /** Holds every upload until it is interrupted. */
+    private static final class StalledGateway implements PhotosGateway {
+        final CountDownLatch stalled = new CountDownLatch(THREADS);
+
+        @Override
+        public UploadMediaItemResponse uploadMediaItem(File file, UploadMediaItemRequest request) {
+            stalled.countDown();
+            try {
+                TimeUnit.MINUTES.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return UploadMediaItemResponse.newBuilder().build();
+        }
+
+        @Override
+        public String startResumableUpload(String mimeType, long size) throws IOException {
+            throw new IOException("Not resumable.");
+        }
+
+        @Override
+        public BatchCreateMediaItemsResponse batchCreateMediaItems(String albumId, List<NewMediaItem> newMediaItems) {
+            return BatchCreateMediaItemsResponse.getDefaultInstance();
+        }
+
+        @Override
+        public BatchAddMediaItemsToAlbumResponse batchAddMediaItemsToAlbum(String albumId, List<String> mediaItemIds) {
+            return BatchAddMediaItemsToAlbumResponse.getDefaultInstance();
+        }
+    }
+}